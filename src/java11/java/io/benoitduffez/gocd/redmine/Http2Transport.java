@@ -0,0 +1,351 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.benoitduffez.gocd.redmine;
+
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+
+/**
+ * {@link Transport} based on the HTTP client of the JDK (Java 11 and later). Concurrent requests to the same host are
+ * multiplexed on one HTTP/2 connection when the server supports it (HTTP/1.1 is used otherwise).
+ * <p>
+ * Streamed request bodies are written by the calling thread, through a {@link BodyStream} that only hands a
+ * chunk to the HTTP client when it asks for it: the body is never buffered in memory.
+ * <p>
+ * This class is compiled for Java 11, and only loaded by {@link Transport#fromEnvironment()}.
+ */
+public class Http2Transport implements Transport {
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final HttpClient client;
+    private final Timeouts timeouts;
+
+    public Http2Transport() {
+        this(Timeouts.fromEnvironment());
+    }
+
+    /**
+     * @param timeouts Timeouts of the requests: the read timeout only applies until the response headers are received
+     */
+    public Http2Transport(Timeouts timeouts) {
+        this.timeouts = timeouts;
+        HttpClient.Builder builder = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NEVER);
+        if (timeouts.getConnectMs() > 0) {
+            builder.connectTimeout(Duration.ofMillis(timeouts.getConnectMs()));
+        }
+        client = builder.build();
+    }
+
+    @Override
+    public void warmUp() {
+        try {
+            client.sslContext().getSupportedSSLParameters();
+            request("https://localhost/", null, 0).GET().build();
+        } catch (RuntimeException e) {
+            TaskPlugin.LOGGER.warn("Couldn't warm up the HTTP client: " + e);
+        }
+    }
+
+    @Override
+    public String get(String url, String apiKey) throws IOException {
+        return RedmineHttpClient.readFully(exchange(request(url, apiKey, timeouts.getShortRequestMs()).GET().build()), "");
+    }
+
+    @Override
+    public <T> T get(String url, String apiKey, Class<T> type) throws IOException {
+        return RedmineHttpClient.readJson(exchange(request(url, apiKey, timeouts.getShortRequestMs()).GET().build()), type);
+    }
+
+    @Override
+    public String delete(String url, String apiKey) throws IOException {
+        return RedmineHttpClient.readFully(exchange(request(url, apiKey, timeouts.getShortRequestMs()).DELETE().build()), "");
+    }
+
+    @Override
+    public String post(String url, String apiKey, String contentType, byte[] body) throws IOException {
+        HttpRequest request = request(url, apiKey, timeouts.getShortRequestMs()).header("Content-Type", contentType).POST(HttpRequest.BodyPublishers.ofByteArray(body)).build();
+        return RedmineHttpClient.readFully(exchange(request), "");
+    }
+
+    @Override
+    public String send(String url, String method, String apiKey, String contentType, long length, Body body) throws IOException {
+        return RedmineHttpClient.readFully(stream(url, method, apiKey, contentType, length, body), "");
+    }
+
+    @Override
+    public <T> T send(String url, String method, String apiKey, String contentType, long length, Body body, Class<T> type) throws IOException {
+        return RedmineHttpClient.readJson(stream(url, method, apiKey, contentType, length, body), type);
+    }
+
+    /**
+     * @param timeoutMs Maximum time until the response headers are received, 0 for no limit
+     */
+    private HttpRequest.Builder request(String url, String apiKey, long timeoutMs) {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(url)).header("Accept", "application/json");
+        if (timeoutMs > 0) {
+            request.timeout(Duration.ofMillis(timeoutMs));
+        }
+        if (apiKey != null) {
+            request.header("X-Redmine-API-Key", apiKey);
+        }
+        return request;
+    }
+
+    private InputStream exchange(HttpRequest request) throws IOException {
+        HttpResponse<InputStream> response;
+        try {
+            response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for Redmine");
+        } catch (IOException e) {
+            throw connectionError(e);
+        }
+        return responseStream(response);
+    }
+
+    /**
+     * The HTTP client reports its timeouts with {@link HttpTimeoutException}, and a lost connection with a plain
+     * {@link IOException}: make them the socket errors that the {@link CircuitBreaker} counts as server failures
+     *
+     * @param e Error of a request, once its body is sent
+     */
+    private static IOException connectionError(IOException e) {
+        if (e instanceof HttpTimeoutException) {
+            SocketTimeoutException timeout = new SocketTimeoutException(e.getMessage());
+            timeout.initCause(e);
+            return timeout;
+        }
+        if (e instanceof SocketException || e instanceof InterruptedIOException || e instanceof SSLException) {
+            return e;
+        }
+        SocketException error = new SocketException(String.valueOf(e.getMessage()));
+        error.initCause(e);
+        return error;
+    }
+
+    /**
+     * Send a request with a body written by the calling thread
+     *
+     * @return The response body
+     */
+    private InputStream stream(String url, String method, String apiKey, String contentType, long length, Body body) throws IOException {
+        BodyStream stream = new BodyStream(length);
+        HttpRequest.BodyPublisher publisher = length > 0 ? HttpRequest.BodyPublishers.fromPublisher(stream, length)
+                : length == 0 ? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.fromPublisher(stream);
+        // A streamed body can take as long as the file needs: only the total timeout applies
+        HttpRequest request = request(url, apiKey, timeouts.getTotalMs()).header("Content-Type", contentType).method(method, publisher).build();
+        CompletableFuture<HttpResponse<InputStream>> response = client.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream());
+        response.whenComplete((result, error) -> stream.abort());
+
+        try (OutputStream output = length == 0 ? OutputStream.nullOutputStream() : stream) {
+            body.writeTo(output);
+        } catch (IOException e) {
+            if (!response.isDone()) {
+                stream.fail(e);
+                response.cancel(true);
+                throw e;
+            }
+            // Redmine answered before the end of the body: its response tells why
+        }
+        HttpResponse<InputStream> result;
+        try {
+            result = Transport.await(response);
+        } catch (IOException e) {
+            throw connectionError(e);
+        }
+        return responseStream(result);
+    }
+
+    private static InputStream responseStream(HttpResponse<InputStream> response) throws IOException {
+        if (response.statusCode() >= 300) {
+            throw new RedmineException(response.statusCode(), RedmineHttpClient.readFully(response.body(), ""));
+        }
+        return response.body();
+    }
+
+    /**
+     * Request body written as an {@link OutputStream} by the calling thread, and published to the HTTP client in chunks,
+     * as it requests them.
+     * <p>
+     * A chunk can't be reused: the HTTP client owns the buffers it is given, and may still hold one in its send queue
+     * after it asked for the next one, as the publishers of the JDK allocate a buffer per item too. Chunks are only
+     * allocated when there is something to write, and no larger than what is left of a body of known length, so that a
+     * small body doesn't cost a full chunk and no chunk is allocated after the last one.
+     */
+    private static class BodyStream extends OutputStream implements Flow.Publisher<ByteBuffer> {
+        private Flow.Subscriber<? super ByteBuffer> subscriber;
+        private long demand;
+        private boolean ended;
+        private byte[] chunk;
+        private int count;
+        /**
+         * Bytes of the body that were not handed to the HTTP client yet, or -1 if the length of the body is not known
+         */
+        private long remaining;
+
+        /**
+         * @param length Length of the body, or -1 if it is not known
+         */
+        BodyStream(long length) {
+            remaining = length < 0 ? -1 : length;
+        }
+
+        @Override
+        public synchronized void subscribe(Flow.Subscriber<? super ByteBuffer> newSubscriber) {
+            if (subscriber != null) {
+                newSubscriber.onSubscribe(new Subscription());
+                newSubscriber.onError(new IllegalStateException("The request body can only be sent once"));
+                return;
+            }
+            subscriber = newSubscriber;
+            subscriber.onSubscribe(new Subscription());
+            notifyAll();
+        }
+
+        private class Subscription implements Flow.Subscription {
+            @Override
+            public void request(long n) {
+                synchronized (BodyStream.this) {
+                    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                    BodyStream.this.notifyAll();
+                }
+            }
+
+            @Override
+            public void cancel() {
+                abort();
+            }
+        }
+
+        /**
+         * Stop writing: the request is over
+         */
+        synchronized void abort() {
+            ended = true;
+            notifyAll();
+        }
+
+        /**
+         * Abort the request, the body couldn't be written
+         */
+        void fail(Throwable error) {
+            Flow.Subscriber<? super ByteBuffer> failed;
+            synchronized (this) {
+                failed = ended ? null : subscriber;
+                ended = true;
+                notifyAll();
+            }
+            if (failed != null) {
+                failed.onError(error);
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            nextChunk();
+            chunk[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                nextChunk();
+                int copied = Math.min(len, chunk.length - count);
+                System.arraycopy(b, off, chunk, count, copied);
+                count += copied;
+                off += copied;
+                len -= copied;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            emit();
+        }
+
+        @Override
+        public void close() throws IOException {
+            emit();
+            awaitSubscriber(false).onComplete();
+        }
+
+        /**
+         * Make room in the current chunk: hand it to the HTTP client if it is full, and start a new one if needed
+         */
+        private void nextChunk() throws IOException {
+            if (chunk != null && count == chunk.length) {
+                emit();
+            }
+            if (chunk == null) {
+                // A body longer than announced gets full chunks: the HTTP client fails the request
+                chunk = new byte[remaining > 0 ? (int) Math.min(CHUNK_SIZE, remaining) : CHUNK_SIZE];
+            }
+        }
+
+        /**
+         * Hand the current chunk to the HTTP client, once it asks for one
+         */
+        private void emit() throws IOException {
+            if (count == 0) {
+                return;
+            }
+            Flow.Subscriber<? super ByteBuffer> current = awaitSubscriber(true);
+            // The client owns the chunk now
+            current.onNext(ByteBuffer.wrap(chunk, 0, count));
+            if (remaining > 0) {
+                remaining = Math.max(0, remaining - count);
+            }
+            chunk = null;
+            count = 0;
+        }
+
+        private synchronized Flow.Subscriber<? super ByteBuffer> awaitSubscriber(boolean withDemand) throws IOException {
+            try {
+                while (!ended && (subscriber == null || (withDemand && demand == 0))) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while sending the request body");
+            }
+            if (ended) {
+                throw new IOException("The request ended before its body was sent");
+            }
+            if (withDemand) {
+                demand--;
+            }
+            return subscriber;
+        }
+    }
+}
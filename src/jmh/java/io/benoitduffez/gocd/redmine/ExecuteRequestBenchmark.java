@@ -0,0 +1,64 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.benoitduffez.gocd.redmine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of the body of an execute request into the task config and context
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExecuteRequestBenchmark {
+    static final String REQUEST_BODY = "{"
+            + "\"config\":{"
+            + "\"ProjectId\":{\"secure\":false,\"value\":\"my-app\",\"required\":true},"
+            + "\"VersionId\":{\"secure\":false,\"value\":\"42\",\"required\":true},"
+            + "\"FilePath\":{\"secure\":false,\"value\":\"app/build/outputs/apk/**/*.apk\",\"required\":true},"
+            + "\"FileName\":{\"secure\":false,\"value\":\"%P-%A-%r-%F\",\"required\":true},"
+            + "\"AppFolder\":{\"secure\":false,\"value\":\"app\",\"required\":false}"
+            + "},"
+            + "\"context\":{"
+            + "\"workingDirectory\":\"pipelines/my-app\","
+            + "\"environmentVariables\":{"
+            + "\"GO_PIPELINE_NAME\":\"my-app\",\"GO_PIPELINE_COUNTER\":\"1234\",\"GO_PIPELINE_LABEL\":\"1234\","
+            + "\"GO_REVISION\":\"0123456789abcdef0123456789abcdef01234567\",\"GO_STAGE_NAME\":\"publish\","
+            + "\"GO_JOB_NAME\":\"redmine\",\"GO_SERVER_URL\":\"https://go.example.com/go\","
+            + "\"REDMINE_URL\":\"https://redmine.example.com\",\"REDMINE_API_KEY\":\"0123456789abcdef\","
+            + "\"ANDROID_VARIANT\":\"release\",\"JAVA_HOME\":\"/usr/lib/jvm/default\",\"PATH\":\"/usr/local/bin:/usr/bin:/bin\""
+            + "}}}";
+
+    @Benchmark
+    public ExecuteRequest.Decoded decode() throws IOException {
+        return ExecuteRequest.decode(REQUEST_BODY);
+    }
+}
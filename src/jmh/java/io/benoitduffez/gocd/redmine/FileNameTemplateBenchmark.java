@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.benoitduffez.gocd.redmine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * File Name expansion, compared with the String.replaceAll loop it replaced
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileNameTemplateBenchmark {
+    @Param({"%P-%C-%r-%F", "%P-%A-%{date:yyyyMMdd}-%{GO_STAGE_NAME}-%F"})
+    public String template;
+
+    private Map<String, String> environment;
+    private FileNameTemplate.Values values;
+
+    @Setup
+    public void setUp() {
+        environment = new HashMap<>();
+        environment.put("GO_PIPELINE_NAME", "my-app");
+        environment.put("GO_PIPELINE_COUNTER", "1234");
+        environment.put("GO_PIPELINE_LABEL", "1234");
+        environment.put("GO_REVISION", "0123456789abcdef0123456789abcdef01234567");
+        environment.put("GO_STAGE_NAME", "publish");
+
+        values = new FileNameTemplate.Values() {
+            @Override
+            public String get(char placeholder) {
+                switch (placeholder) {
+                    case 'R':
+                        return environment.get("GO_REVISION");
+                    case 'r':
+                        return environment.get("GO_REVISION").substring(0, 8);
+                    case 'P':
+                        return environment.get("GO_PIPELINE_NAME");
+                    case 'C':
+                        return environment.get("GO_PIPELINE_COUNTER");
+                    case 'L':
+                        return environment.get("GO_PIPELINE_LABEL");
+                    case 'A':
+                        return "1.2.3";
+                    case 'F':
+                        return "app-release.apk";
+                    default:
+                        return null;
+                }
+            }
+
+            @Override
+            public String env(String name) {
+                return environment.get(name);
+            }
+        };
+    }
+
+    @Benchmark
+    public String compiledTemplate() {
+        return FileNameTemplate.compile(template).expand(values);
+    }
+
+    @Benchmark
+    public String replaceAllLoop() {
+        String fileName = template;
+        Map<String, String> replacements = new HashMap<>();
+        String sha1 = environment.get("GO_REVISION");
+        replacements.put("%R", sha1);
+        replacements.put("%r", sha1.substring(0, 8));
+        replacements.put("%P", environment.get("GO_PIPELINE_NAME"));
+        replacements.put("%C", environment.get("GO_PIPELINE_COUNTER"));
+        replacements.put("%L", environment.get("GO_PIPELINE_LABEL"));
+        replacements.put("%A", "1.2.3");
+        replacements.put("%F", "app-release.apk");
+        for (Map.Entry<String, String> replacement : replacements.entrySet()) {
+            fileName = fileName.replaceAll(replacement.getKey(), replacement.getValue());
+        }
+        return fileName;
+    }
+}
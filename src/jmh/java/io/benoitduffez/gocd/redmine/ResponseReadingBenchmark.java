@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.benoitduffez.gocd.redmine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading of Redmine responses (an upload token, and a files listing), as text and decoded while they are read
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseReadingBenchmark {
+    @Param({"0", "500"})
+    public int files;
+
+    private byte[] response;
+
+    @Setup
+    public void setUp() {
+        if (files == 0) {
+            response = "{\"upload\":{\"token\":\"7167.ed1ccdb093229ca1bd0b043618d88743\"}}".getBytes(StandardCharsets.UTF_8);
+            return;
+        }
+
+        StringBuilder json = new StringBuilder("{\"files\":[");
+        for (int i = 0; i < files; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"id\":").append(i)
+                    .append(",\"filename\":\"app-1.").append(i).append(".apk\",\"filesize\":12345678")
+                    .append(",\"content_type\":\"application/vnd.android.package-archive\",\"description\":\"File generated on 01/01/2017\"")
+                    .append(",\"content_url\":\"https://redmine.example.com/attachments/download/").append(i).append("/app.apk\"")
+                    .append(",\"author\":{\"id\":1,\"name\":\"GoCD\"},\"created_on\":\"2017-01-01T00:00:00Z\"")
+                    .append(",\"version\":{\"id\":42,\"name\":\"1.0\"},\"digest\":\"0123456789abcdef0123456789abcdef\",\"downloads\":0}");
+        }
+        response = json.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public String readResponse() throws IOException {
+        return RedmineHttpClient.readFully(new ByteArrayInputStream(response), "");
+    }
+
+    @Benchmark
+    public RemoteFiles.FileList decodeResponse() throws IOException {
+        return RedmineHttpClient.readJson(new ByteArrayInputStream(response), RemoteFiles.FileList.class);
+    }
+}
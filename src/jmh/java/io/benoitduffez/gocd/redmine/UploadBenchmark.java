@@ -0,0 +1,103 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.benoitduffez.gocd.redmine;
+
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streaming of a file to an in-process stub of /uploads.json, through the shared HTTP client
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx64m"})
+public class UploadBenchmark {
+    private static final byte[] TOKEN_RESPONSE = "{\"upload\":{\"token\":\"7167.ed1ccdb093229ca1bd0b043618d88743\"}}".getBytes(StandardCharsets.UTF_8);
+
+    @Param({"1", "64", "512"})
+    public int sizeMb;
+
+    private HttpServer server;
+    private String url;
+    private File file;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/uploads.json", exchange -> {
+            byte[] buffer = new byte[64 * 1024];
+            try (InputStream body = exchange.getRequestBody()) {
+                while (body.read(buffer) >= 0) {
+                    // Drain the request like Redmine would
+                }
+            }
+            exchange.sendResponseHeaders(201, TOKEN_RESPONSE.length);
+            try (OutputStream response = exchange.getResponseBody()) {
+                response.write(TOKEN_RESPONSE);
+            }
+        });
+        server.start();
+        url = "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/uploads.json";
+
+        file = File.createTempFile("upload-benchmark", ".bin");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(sizeMb * 1024L * 1024L);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop(0);
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    @Benchmark
+    public String upload() throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return TaskPlugin.HTTP.send(url, "POST", "api-key", "application/octet-stream", channel.size(),
+                    output -> RedmineUploadFileTaskExecutor.streamFile(channel, output));
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.benoitduffez.gocd.redmine;
+
+import com.thoughtworks.go.plugin.api.task.JobConsoleLogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the task from several simulated agents at once against a {@link StubRedmine}, and reports the job latencies,
+ * the throughput and the failures.
+ * <p>
+ * Options are given as name=value arguments:
+ * <ul>
+ * <li>agents: number of agents running jobs concurrently (8)</li>
+ * <li>jobs: number of jobs run by each agent (5)</li>
+ * <li>files: number of files published by each job (1)</li>
+ * <li>sizeKB: size of each file (1024)</li>
+ * <li>parallelism, retries: task configuration (plugin defaults)</li>
+ * <li>maxUploads, maxUploadKBps: REDMINE_MAX_UPLOADS and REDMINE_MAX_UPLOAD_KBPS of the agents (not set)</li>
+ * <li>url: Redmine to use instead of an in-process stub, e.g. a StubRedmine started on its own</li>
+ * <li>maxFileSize: MaxFileSize of the task, in KB (not set)</li>
+ * <li>latencyMs, bandwidthKBps, errorRate, resetRate, maxFileSizeKB: behaviour of the in-process stub, see {@link StubRedmine}</li>
+ * <li>verbose: print the task console output (false)</li>
+ * </ul>
+ */
+public class LoadTest {
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int agents = Integer.parseInt(options.getOrDefault("agents", "8"));
+        int jobs = Integer.parseInt(options.getOrDefault("jobs", "5"));
+        int filesPerJob = Integer.parseInt(options.getOrDefault("files", "1"));
+        long fileSize = Long.parseLong(options.getOrDefault("sizeKB", "1024")) * 1024;
+        boolean verbose = Boolean.parseBoolean(options.get("verbose"));
+
+        StubRedmine stub = null;
+        String url = options.get("url");
+        if (url == null) {
+            stub = new StubRedmine(0).configure(options);
+            stub.start();
+            url = stub.getUrl();
+        }
+
+        File root = Files.createTempDirectory("redmine-load-test").toFile();
+        List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+        AtomicInteger failures = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(agents);
+        for (int agent = 0; agent < agents; agent++) {
+            final int agentNumber = agent;
+            final String redmineUrl = url;
+            pool.execute(() -> {
+                try {
+                    start.await();
+                    File workingDir = new File(root, "agent-" + agentNumber);
+                    for (int job = 0; job < jobs; job++) {
+                        prepareFiles(workingDir, agentNumber, job, filesPerJob, fileSize);
+                        long jobStart = System.nanoTime();
+                        Result result = new RedmineUploadFileTaskExecutor().execute(
+                                new TaskConfig(config(options)),
+                                new Context(environment(options, redmineUrl, agentNumber, job), workingDir.getAbsolutePath()),
+                                new Console(agentNumber, verbose));
+                        latencies.add(System.nanoTime() - jobStart);
+                        if (!result.isSuccess()) {
+                            failures.incrementAndGet();
+                            System.out.println("agent-" + agentNumber + " job " + job + " failed: " + result.getMessage());
+                        }
+                    }
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                    System.out.println("agent-" + agentNumber + " stopped: " + e);
+                }
+            });
+        }
+
+        long wallStart = System.nanoTime();
+        start.countDown();
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        long wallNanos = System.nanoTime() - wallStart;
+
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        long bytes = (long) agents * jobs * filesPerJob * fileSize;
+        System.out.println();
+        System.out.println(String.format(Locale.ROOT, "%d agents x %d jobs x %d files of %s in %.1fs",
+                agents, jobs, filesPerJob, UploadMetrics.formatBytes(fileSize), wallNanos / 1e9));
+        System.out.println(String.format(Locale.ROOT, "job latency: p50 %d ms, p99 %d ms, max %d ms",
+                percentile(sorted, 50), percentile(sorted, 99), percentile(sorted, 100)));
+        System.out.println(String.format(Locale.ROOT, "throughput: %s/s, %.1f jobs/s",
+                UploadMetrics.formatBytes((long) (bytes / (wallNanos / 1e9))), sorted.size() / (wallNanos / 1e9)));
+        System.out.println("failed jobs: " + failures.get() + " of " + agents * jobs);
+        if (stub != null) {
+            System.out.println("stub: " + stub.getRequests() + " requests, " + stub.getErrors() + " errors, "
+                    + stub.getResets() + " resets, " + UploadMetrics.formatBytes(stub.getBytesReceived()) + " received");
+            stub.stop();
+        }
+        deleteRecursively(root);
+        System.exit(failures.get() == 0 ? 0 : 1);
+    }
+
+    /**
+     * @param args name=value arguments
+     * @return The options
+     */
+    static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals <= 0) {
+                throw new IllegalArgumentException("Expected name=value, got " + arg);
+            }
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        return options;
+    }
+
+    /**
+     * Replace the files of the previous job by new ones with a distinct content, so that they are not seen as duplicates
+     */
+    private static void prepareFiles(File workingDir, int agent, int job, int count, long size) throws IOException {
+        File dir = new File(workingDir, "out");
+        deleteRecursively(dir);
+        if (!dir.mkdirs()) {
+            throw new IOException("Can't create " + dir);
+        }
+        for (int i = 0; i < count; i++) {
+            try (RandomAccessFile file = new RandomAccessFile(new File(dir, "artifact-" + i + ".bin"), "rw")) {
+                file.setLength(size);
+                String header = agent + "/" + job + "/" + i + "/" + ThreadLocalRandom.current().nextLong() + "\n";
+                file.write(header.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    private static Map<String, String> config(Map<String, String> options) {
+        Map<String, String> config = new HashMap<>();
+        config.put(TaskPlugin.PROJECT_ID_PROPERTY, "1");
+        config.put(TaskPlugin.VERSION_ID_PROPERTY, "1");
+        config.put(TaskPlugin.FILE_PATH_PROPERTY, "out/*.bin");
+        config.put(TaskPlugin.FILE_NAME_PROPERTY, "%P-%C-%F");
+        config.put(TaskPlugin.PARALLELISM_PROPERTY, options.get("parallelism"));
+        config.put(TaskPlugin.RETRIES_PROPERTY, options.get("retries"));
+        config.put(TaskPlugin.MAX_FILE_SIZE_PROPERTY, options.get("maxFileSize"));
+        return config;
+    }
+
+    private static Map<String, String> environment(Map<String, String> options, String redmineUrl, int agent, int job) {
+        Map<String, String> environment = new HashMap<>();
+        environment.put("REDMINE_URL", redmineUrl);
+        environment.put("REDMINE_API_KEY", "load-test");
+        environment.put("REDMINE_MAX_UPLOADS", options.get("maxUploads"));
+        environment.put("REDMINE_MAX_UPLOAD_KBPS", options.get("maxUploadKBps"));
+        environment.put("GO_PIPELINE_NAME", "agent-" + agent);
+        environment.put("GO_PIPELINE_COUNTER", String.valueOf(job));
+        environment.put("GO_PIPELINE_LABEL", String.valueOf(job));
+        environment.put("GO_REVISION", "0123456789abcdef0123456789abcdef01234567");
+        return environment;
+    }
+
+    /**
+     * @param sorted  Sorted latencies in nanoseconds
+     * @param percent Percentile
+     * @return Latency at that percentile, in milliseconds
+     */
+    private static long percentile(List<Long> sorted, int percent) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percent / 100.0 * sorted.size()) - 1;
+        return TimeUnit.NANOSECONDS.toMillis(sorted.get(Math.max(0, index)));
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Console of a simulated agent
+     */
+    private static class Console extends JobConsoleLogger {
+        private final String prefix;
+        private final boolean verbose;
+
+        Console(int agent, boolean verbose) {
+            this.prefix = "[agent-" + agent + "] ";
+            this.verbose = verbose;
+        }
+
+        @Override
+        public void printLine(String line) {
+            if (verbose) {
+                System.out.println(prefix + line);
+            }
+        }
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.benoitduffez.gocd.redmine;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-process stand-in for Redmine, implementing what the plugin calls: uploads, files listing and linking, projects and
+ * versions. Latency, bandwidth, error rate and connection resets can be configured to simulate a loaded server.
+ * <p>
+ * It can also run on its own: {@code java io.benoitduffez.gocd.redmine.StubRedmine port=3000 latencyMs=50}
+ */
+public class StubRedmine {
+    private static final Pattern PROJECT_FILES = Pattern.compile("/projects/([^/]+)/files\\.json");
+    private static final Pattern PROJECT = Pattern.compile("/projects/([^/]+)\\.json");
+    private static final Pattern PROJECT_VERSIONS = Pattern.compile("/projects/([^/]+)/versions\\.json");
+    private static final Pattern VERSION = Pattern.compile("/versions/(\\d+)\\.json");
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private volatile long latencyMs;
+    private volatile long bandwidthBytesPerSecond;
+    private volatile double errorRate;
+    private volatile double resetRate;
+    private volatile long maxFileSize;
+
+    /**
+     * Time at which the shared link is free again, when the bandwidth is limited
+     */
+    private long linkFreeAtNanos;
+
+    private final AtomicInteger nextToken = new AtomicInteger();
+    private final AtomicInteger nextFileId = new AtomicInteger();
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+    private final Map<String, List<String>> files = new ConcurrentHashMap<>();
+
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger errors = new AtomicInteger();
+    private final AtomicInteger resets = new AtomicInteger();
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    /**
+     * @param port Port to listen to on the loopback interface, 0 for any free port
+     * @throws IOException If the port can't be bound
+     */
+    public StubRedmine(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/", this::handle);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = LoadTest.parseOptions(args);
+        StubRedmine stub = new StubRedmine(Integer.parseInt(options.getOrDefault("port", "3000")));
+        stub.configure(options);
+        stub.start();
+        System.out.println("Stub Redmine listening on " + stub.getUrl());
+    }
+
+    /**
+     * Apply the latencyMs, bandwidthKBps, errorRate, resetRate and maxFileSizeKB options
+     *
+     * @param options Options, missing ones are left unchanged
+     * @return This stub
+     */
+    public StubRedmine configure(Map<String, String> options) {
+        if (options.containsKey("latencyMs")) {
+            setLatencyMs(Long.parseLong(options.get("latencyMs")));
+        }
+        if (options.containsKey("bandwidthKBps")) {
+            setBandwidthBytesPerSecond(Long.parseLong(options.get("bandwidthKBps")) * 1024);
+        }
+        if (options.containsKey("errorRate")) {
+            setErrorRate(Double.parseDouble(options.get("errorRate")));
+        }
+        if (options.containsKey("resetRate")) {
+            setResetRate(Double.parseDouble(options.get("resetRate")));
+        }
+        if (options.containsKey("maxFileSizeKB")) {
+            setMaxFileSize(Long.parseLong(options.get("maxFileSizeKB")) * 1024);
+        }
+        return this;
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return Value for REDMINE_URL
+     */
+    public String getUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+    }
+
+    /**
+     * @param latencyMs Delay added before each response
+     */
+    public void setLatencyMs(long latencyMs) {
+        this.latencyMs = latencyMs;
+    }
+
+    /**
+     * @param bandwidthBytesPerSecond Rate at which request bodies are read, shared by all the connections; 0 for no limit
+     */
+    public void setBandwidthBytesPerSecond(long bandwidthBytesPerSecond) {
+        this.bandwidthBytesPerSecond = bandwidthBytesPerSecond;
+    }
+
+    /**
+     * @param errorRate Probability (0 to 1) that a request is answered with a 503
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * @param resetRate Probability (0 to 1) that the connection is closed without any response
+     */
+    public void setResetRate(double resetRate) {
+        this.resetRate = resetRate;
+    }
+
+    /**
+     * @param maxFileSize Size above which uploads are rejected like Redmine does (attachment_max_size); 0 for no limit
+     */
+    public void setMaxFileSize(long maxFileSize) {
+        this.maxFileSize = maxFileSize;
+    }
+
+    public int getRequests() {
+        return requests.get();
+    }
+
+    public int getErrors() {
+        return errors.get();
+    }
+
+    public int getResets() {
+        return resets.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        String path = exchange.getRequestURI().getPath();
+        String method = exchange.getRequestMethod();
+        try {
+            Upload upload = readBody(exchange.getRequestBody(), "/uploads.json".equals(path));
+            sleep(latencyMs);
+
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            if (random.nextDouble() < resetRate) {
+                resets.incrementAndGet();
+                // The server closes the connection when a handler fails before sending anything
+                throw new IOException("Simulated connection reset");
+            }
+            if (random.nextDouble() < errorRate) {
+                errors.incrementAndGet();
+                respond(exchange, 503, "{\"errors\":[\"Service unavailable\"]}");
+                return;
+            }
+
+            Matcher matcher;
+            if ("POST".equals(method) && "/uploads.json".equals(path)) {
+                if (maxFileSize > 0 && upload.size > maxFileSize) {
+                    respond(exchange, 422, "{\"errors\":[\"This file cannot be uploaded because it exceeds the maximum allowed file size ("
+                            + maxFileSize / 1024 + " KB)\"]}");
+                    return;
+                }
+                String token = nextToken.incrementAndGet() + "." + upload.digest.substring(0, 32);
+                uploads.put(token, upload);
+                respond(exchange, 201, "{\"upload\":{\"token\":\"" + token + "\"}}");
+            } else if ((matcher = PROJECT_FILES.matcher(path)).matches()) {
+                if ("POST".equals(method)) {
+                    link(exchange, matcher.group(1), upload.body);
+                } else {
+                    List<String> listing = files.get(matcher.group(1));
+                    respond(exchange, 200, "{\"files\":[" + (listing == null ? "" : join(listing)) + "]}");
+                }
+            } else if ((matcher = PROJECT_VERSIONS.matcher(path)).matches()) {
+                respond(exchange, 200, "{\"versions\":[{\"id\":1,\"name\":\"1.0\",\"status\":\"open\"}]}");
+            } else if ((matcher = PROJECT.matcher(path)).matches()) {
+                respond(exchange, 200, "{\"project\":{\"id\":1,\"identifier\":\"" + matcher.group(1) + "\",\"name\":\"" + matcher.group(1) + "\"}}");
+            } else if ((matcher = VERSION.matcher(path)).matches()) {
+                respond(exchange, 200, "{\"version\":{\"id\":" + matcher.group(1) + ",\"name\":\"" + matcher.group(1) + ".0\",\"status\":\"open\"}}");
+            } else {
+                respond(exchange, 404, "");
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Link an upload to a version, as POST /projects/:id/files.json does
+     */
+    private void link(HttpExchange exchange, String projectId, String body) throws IOException {
+        JsonObject file = new JsonParser().parse(body).getAsJsonObject().getAsJsonObject("file");
+        Upload upload = file == null ? null : uploads.remove(string(file, "token", ""));
+        if (upload == null) {
+            respond(exchange, 422, "{\"errors\":[\"Token is invalid\"]}");
+            return;
+        }
+
+        String versionId = string(file, "version_id", null);
+        String filename = string(file, "filename", "file");
+        String json = "{\"id\":" + nextFileId.incrementAndGet()
+                + ",\"filename\":\"" + filename.replace("\"", "\\\"") + "\""
+                + ",\"filesize\":" + upload.size
+                + ",\"digest\":\"" + upload.digest + "\""
+                + ",\"version\":" + (versionId == null ? "null" : "{\"id\":" + versionId + ",\"name\":\"" + versionId + ".0\"}") + "}";
+        files.computeIfAbsent(projectId, id -> new ArrayList<>());
+        List<String> listing = files.get(projectId);
+        synchronized (listing) {
+            listing.add(json);
+        }
+        respond(exchange, 204, "");
+    }
+
+    /**
+     * Read the request body at the configured bandwidth
+     *
+     * @param in     Request body
+     * @param digest Whether the SHA-256 of the body is needed, the body is kept otherwise
+     * @return What was received
+     * @throws IOException In case of network error
+     */
+    private Upload readBody(InputStream in, boolean digest) throws IOException {
+        MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        StringBuilder body = new StringBuilder();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long size = 0;
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            throttle(read);
+            size += read;
+            if (digest) {
+                sha256.update(buffer, 0, read);
+            } else {
+                body.append(new String(buffer, 0, read, StandardCharsets.UTF_8));
+            }
+        }
+        bytesReceived.addAndGet(size);
+        return new Upload(size, FileDigest.toHex(sha256.digest()), body.toString());
+    }
+
+    /**
+     * Wait until the shared link had the time to carry that many bytes
+     */
+    private void throttle(int bytes) {
+        long bandwidth = bandwidthBytesPerSecond;
+        if (bandwidth <= 0) {
+            return;
+        }
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            linkFreeAtNanos = Math.max(linkFreeAtNanos, now) + TimeUnit.SECONDS.toNanos(bytes) / bandwidth;
+            waitNanos = linkFreeAtNanos - now;
+        }
+        sleep(TimeUnit.NANOSECONDS.toMillis(waitNanos));
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+
+    private static String string(JsonObject object, String name, String defaultValue) {
+        return object.has(name) && !object.get(name).isJsonNull() ? object.get(name).getAsString() : defaultValue;
+    }
+
+    private static String join(List<String> listing) {
+        synchronized (listing) {
+            return String.join(",", listing);
+        }
+    }
+
+    private static void sleep(long ms) {
+        if (ms <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Upload {
+        final long size;
+        final String digest;
+        final String body;
+
+        Upload(long size, String digest, String body) {
+            this.size = size;
+            this.digest = digest;
+            this.body = body;
+        }
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.benoitduffez.gocd.redmine;
+
+import org.apache.commons.io.IOUtils;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Reads the {@code android:versionName} of an Android application, without forking any process, from either:
+ * <ul>
+ * <li>a text {@code AndroidManifest.xml} (e.g. the merged manifest of a Gradle build), with a streaming parser that
+ * stops at the first {@code versionName} attribute,</li>
+ * <li>the binary manifest inside an APK,</li>
+ * <li>the protocol buffer manifest inside an AAB.</li>
+ * </ul>
+ * Results are cached by file path, size and modification time.
+ */
+public class AndroidVersionName {
+    private static final String VERSION_NAME = "versionName";
+
+    /**
+     * Resource ID of the android:versionName attribute
+     */
+    private static final int VERSION_NAME_RESOURCE_ID = 0x0101021c;
+
+    private static final String APK_MANIFEST = "AndroidManifest.xml";
+    private static final String AAB_MANIFEST = "base/manifest/AndroidManifest.xml";
+
+    private static final int MAX_CACHE_SIZE = 100;
+
+    private static final Map<String, CacheEntry> CACHE = new ConcurrentHashMap<>();
+
+    private static final XMLInputFactory XML_INPUT_FACTORY = createXmlInputFactory();
+
+    private static XMLInputFactory createXmlInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    }
+
+    /**
+     * @param file Manifest, APK or AAB
+     * @return The version name, or an empty string if the file doesn't exist or has no version name
+     */
+    public static String of(File file) {
+        if (!file.isFile()) {
+            return "";
+        }
+
+        String key = file.getAbsolutePath();
+        CacheEntry entry = CACHE.get(key);
+        if (entry != null && entry.size == file.length() && entry.lastModified == file.lastModified()) {
+            return entry.versionName;
+        }
+
+        entry = new CacheEntry(file.length(), file.lastModified(), read(file));
+        if (CACHE.size() >= MAX_CACHE_SIZE) {
+            CACHE.clear();
+        }
+        CACHE.put(key, entry);
+        return entry.versionName;
+    }
+
+    private static String read(File file) {
+        String versionName = null;
+        try {
+            String name = file.getName().toLowerCase();
+            if (name.endsWith(".apk")) {
+                versionName = fromArchive(file, APK_MANIFEST);
+            } else if (name.endsWith(".aab")) {
+                versionName = fromArchive(file, AAB_MANIFEST);
+            } else {
+                try (InputStream input = new FileInputStream(file)) {
+                    versionName = fromXml(input);
+                }
+            }
+        } catch (IOException | XMLStreamException | RuntimeException e) {
+            TaskPlugin.LOGGER.warn("Couldn't read the version name from " + file, e);
+        }
+        return versionName == null ? "" : versionName.trim();
+    }
+
+    /**
+     * Only the manifest entry is read from the archive: {@link ZipFile} seeks to it using the central directory
+     */
+    private static String fromArchive(File file, String manifestPath) throws IOException {
+        try (ZipFile zip = new ZipFile(file)) {
+            ZipEntry entry = zip.getEntry(manifestPath);
+            if (entry == null) {
+                return null;
+            }
+            byte[] manifest;
+            try (InputStream input = zip.getInputStream(entry)) {
+                manifest = IOUtils.toByteArray(input);
+            }
+            return APK_MANIFEST.equals(manifestPath) ? fromBinaryXml(manifest) : fromProtoXml(manifest);
+        }
+    }
+
+    static String fromXml(InputStream input) throws XMLStreamException {
+        XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(input);
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                    for (int i = 0; i < reader.getAttributeCount(); i++) {
+                        if (VERSION_NAME.equals(reader.getAttributeLocalName(i))) {
+                            return reader.getAttributeValue(i);
+                        }
+                    }
+                }
+            }
+            return null;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Parse the compiled XML format used by APKs: a sequence of chunks (string pool, resource IDs, XML nodes)
+     */
+    static String fromBinaryXml(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        if (data.length < 8 || buffer.getShort(0) != 0x0003) {
+            return null;
+        }
+
+        int stringPool = -1;
+        int[] resourceIds = new int[0];
+        int position = buffer.getShort(2) & 0xFFFF;
+        while (position + 8 <= data.length) {
+            int type = buffer.getShort(position) & 0xFFFF;
+            int headerSize = buffer.getShort(position + 2) & 0xFFFF;
+            int size = buffer.getInt(position + 4);
+            if (size <= 0) {
+                return null;
+            }
+
+            if (type == 0x0001) {
+                stringPool = position;
+            } else if (type == 0x0180) {
+                resourceIds = new int[(size - headerSize) / 4];
+                for (int i = 0; i < resourceIds.length; i++) {
+                    resourceIds[i] = buffer.getInt(position + headerSize + 4 * i);
+                }
+            } else if (type == 0x0102 && stringPool >= 0) {
+                int element = position + headerSize;
+                int attributeStart = buffer.getShort(element + 8) & 0xFFFF;
+                int attributeSize = buffer.getShort(element + 10) & 0xFFFF;
+                int attributeCount = buffer.getShort(element + 12) & 0xFFFF;
+                for (int i = 0; i < attributeCount; i++) {
+                    int attribute = element + attributeStart + i * attributeSize;
+                    int name = buffer.getInt(attribute + 4);
+                    boolean isVersionName = name >= 0 && name < resourceIds.length
+                            ? resourceIds[name] == VERSION_NAME_RESOURCE_ID
+                            : VERSION_NAME.equals(poolString(buffer, stringPool, name));
+                    if (isVersionName) {
+                        int rawValue = buffer.getInt(attribute + 8);
+                        int dataType = buffer.get(attribute + 15) & 0xFF;
+                        if (rawValue >= 0) {
+                            return poolString(buffer, stringPool, rawValue);
+                        }
+                        // A string value, otherwise it is a reference to a resource we can't resolve without resources.arsc
+                        return dataType == 0x03 ? poolString(buffer, stringPool, buffer.getInt(attribute + 16)) : null;
+                    }
+                }
+            }
+            position += size;
+        }
+        return null;
+    }
+
+    private static String poolString(ByteBuffer buffer, int pool, int index) {
+        int headerSize = buffer.getShort(pool + 2) & 0xFFFF;
+        int stringCount = buffer.getInt(pool + 8);
+        if (index < 0 || index >= stringCount) {
+            return null;
+        }
+        boolean utf8 = (buffer.getInt(pool + 16) & (1 << 8)) != 0;
+        int stringsStart = buffer.getInt(pool + 20);
+        int offset = pool + stringsStart + buffer.getInt(pool + headerSize + 4 * index);
+
+        if (utf8) {
+            // Length in characters, then length in bytes, each on 1 or 2 bytes
+            offset += (buffer.get(offset) & 0x80) != 0 ? 2 : 1;
+            int length = buffer.get(offset) & 0xFF;
+            if ((length & 0x80) != 0) {
+                length = ((length & 0x7F) << 8) | (buffer.get(offset + 1) & 0xFF);
+                offset += 2;
+            } else {
+                offset += 1;
+            }
+            return new String(buffer.array(), offset, length, StandardCharsets.UTF_8);
+        }
+
+        int length = buffer.getShort(offset) & 0xFFFF;
+        if ((length & 0x8000) != 0) {
+            length = ((length & 0x7FFF) << 16) | (buffer.getShort(offset + 2) & 0xFFFF);
+            offset += 4;
+        } else {
+            offset += 2;
+        }
+        return new String(buffer.array(), offset, length * 2, StandardCharsets.UTF_16LE);
+    }
+
+    /**
+     * Parse the aapt2 protocol buffer XML format used by AABs: XmlNode { XmlElement element = 1 }, XmlElement {
+     * repeated XmlAttribute attribute = 4 }, XmlAttribute { string name = 2; string value = 3; uint32 resource_id = 5 }
+     */
+    static String fromProtoXml(byte[] data) {
+        ProtoReader node = new ProtoReader(data, 0, data.length);
+        while (node.next()) {
+            if (node.field == 1 && node.wireType == 2) {
+                ProtoReader element = node.message();
+                while (element.next()) {
+                    if (element.field == 4 && element.wireType == 2) {
+                        String value = versionNameAttribute(element.message());
+                        if (value != null) {
+                            return value;
+                        }
+                    } else {
+                        element.skip();
+                    }
+                }
+                return null;
+            }
+            node.skip();
+        }
+        return null;
+    }
+
+    private static String versionNameAttribute(ProtoReader attribute) {
+        String name = null;
+        String value = null;
+        long resourceId = 0;
+        while (attribute.next()) {
+            if (attribute.field == 2 && attribute.wireType == 2) {
+                name = attribute.string();
+            } else if (attribute.field == 3 && attribute.wireType == 2) {
+                value = attribute.string();
+            } else if (attribute.field == 5 && attribute.wireType == 0) {
+                resourceId = attribute.varint();
+            } else {
+                attribute.skip();
+            }
+        }
+        return VERSION_NAME.equals(name) || resourceId == VERSION_NAME_RESOURCE_ID ? value : null;
+    }
+
+    /**
+     * Minimal protocol buffer reader: iterates over the fields of one message
+     */
+    private static class ProtoReader {
+        private final byte[] data;
+        private final int end;
+        private int position;
+        int field;
+        int wireType;
+
+        ProtoReader(byte[] data, int start, int end) {
+            this.data = data;
+            this.position = start;
+            this.end = end;
+        }
+
+        boolean next() {
+            if (position >= end) {
+                return false;
+            }
+            long tag = varint();
+            field = (int) (tag >>> 3);
+            wireType = (int) (tag & 0x7);
+            return true;
+        }
+
+        long varint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = data[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint");
+        }
+
+        ProtoReader message() {
+            int length = (int) varint();
+            ProtoReader message = new ProtoReader(data, position, position + length);
+            position += length;
+            return message;
+        }
+
+        String string() {
+            int length = (int) varint();
+            String value = new String(data, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        void skip() {
+            switch (wireType) {
+                case 0:
+                    varint();
+                    break;
+                case 1:
+                    position += 8;
+                    break;
+                case 2:
+                    int length = (int) varint();
+                    position += length;
+                    break;
+                case 5:
+                    position += 4;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported wire type " + wireType);
+            }
+        }
+    }
+
+    private static class CacheEntry {
+        final long size;
+        final long lastModified;
+        final String versionName;
+
+        CacheEntry(long size, long lastModified, String versionName) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.versionName = versionName;
+        }
+    }
+}
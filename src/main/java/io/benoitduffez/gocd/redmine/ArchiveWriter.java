@@ -0,0 +1,197 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.benoitduffez.gocd.redmine;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes a directory as a zip or tar.gz archive straight to an output stream (e.g. a request body), without any
+ * temporary file
+ */
+public class ArchiveWriter {
+    public static final String ZIP = "zip";
+    public static final String TAR_GZ = "tar.gz";
+
+    private static final int TAR_BLOCK_SIZE = 512;
+    private static final byte[] TAR_PADDING = new byte[TAR_BLOCK_SIZE];
+
+    private final String format;
+    private final int compressionLevel;
+
+    /**
+     * @param format           {@link #ZIP} or {@link #TAR_GZ}
+     * @param compressionLevel 0 (no compression) to 9 (best compression), or -1 for the default level
+     */
+    public ArchiveWriter(String format, int compressionLevel) {
+        if (!ZIP.equals(format) && !TAR_GZ.equals(format)) {
+            throw new IllegalArgumentException("Unsupported archive format: " + format);
+        }
+        this.format = format;
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * @param directory Directory to archive
+     * @return The name of the archive: the directory name, with the archive extension
+     */
+    public String archiveName(File directory) {
+        return directory.getName() + "." + format;
+    }
+
+    /**
+     * Write the archive of all the files of the directory. The entries are relative to the directory.
+     *
+     * @param directory Directory to archive
+     * @param output    Destination, left open
+     * @throws IOException In case of I/O error
+     */
+    public void write(File directory, OutputStream output) throws IOException {
+        Path root = directory.toPath();
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(root)) {
+            files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+
+        OutputStream unclosable = new FilterOutputStream(output) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+        if (ZIP.equals(format)) {
+            writeZip(root, files, unclosable);
+        } else {
+            writeTarGz(root, files, unclosable);
+        }
+    }
+
+    private void writeZip(Path root, List<Path> files, OutputStream output) throws IOException {
+        try (ZipOutputStream zip = new ZipOutputStream(output)) {
+            zip.setLevel(compressionLevel);
+            for (Path file : files) {
+                ZipEntry entry = new ZipEntry(entryName(root, file));
+                entry.setTime(Files.getLastModifiedTime(file).toMillis());
+                zip.putNextEntry(entry);
+                Files.copy(file, zip);
+                zip.closeEntry();
+            }
+        }
+    }
+
+    private void writeTarGz(Path root, List<Path> files, OutputStream output) throws IOException {
+        try (GZIPOutputStream gzip = new GZIPOutputStream(output, 64 * 1024) {
+            {
+                def.setLevel(compressionLevel);
+            }
+        }) {
+            for (Path file : files) {
+                String name = entryName(root, file);
+                long size = Files.size(file);
+                byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+                if (nameBytes.length > 100) {
+                    // GNU extension: the long name is the content of a preceding pseudo entry
+                    gzip.write(tarHeader("././@LongLink", nameBytes.length + 1, 0, (byte) 'L'));
+                    gzip.write(nameBytes);
+                    gzip.write(0);
+                    pad(gzip, nameBytes.length + 1);
+                }
+                gzip.write(tarHeader(name, size, Files.getLastModifiedTime(file).toMillis() / 1000, (byte) '0'));
+                Files.copy(file, gzip);
+                pad(gzip, size);
+            }
+            // End of archive: two empty blocks
+            gzip.write(TAR_PADDING);
+            gzip.write(TAR_PADDING);
+        }
+    }
+
+    private static String entryName(Path root, Path file) {
+        return root.relativize(file).toString().replace(File.separatorChar, '/');
+    }
+
+    private static void pad(OutputStream output, long size) throws IOException {
+        int remainder = (int) (size % TAR_BLOCK_SIZE);
+        if (remainder > 0) {
+            output.write(TAR_PADDING, 0, TAR_BLOCK_SIZE - remainder);
+        }
+    }
+
+    /**
+     * @return A ustar header block
+     */
+    private static byte[] tarHeader(String name, long size, long mtime, byte type) {
+        byte[] header = new byte[TAR_BLOCK_SIZE];
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(nameBytes, 0, header, 0, Math.min(nameBytes.length, 100));
+        octal(header, 100, 8, 0644);
+        octal(header, 108, 8, 0);
+        octal(header, 116, 8, 0);
+        if (size < 077777777777L) {
+            octal(header, 124, 12, size);
+        } else {
+            // Base-256 encoding for files of 8 GB and more
+            header[124] = (byte) 0x80;
+            for (int i = 0; i < 8; i++) {
+                header[135 - i] = (byte) (size >>> (8 * i));
+            }
+        }
+        octal(header, 136, 12, mtime);
+        header[156] = type;
+        System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+
+        // The checksum is computed with its own field filled with spaces
+        for (int i = 148; i < 156; i++) {
+            header[i] = ' ';
+        }
+        long checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xFF;
+        }
+        octal(header, 148, 7, checksum);
+        return header;
+    }
+
+    /**
+     * Write a zero padded, NUL terminated octal number
+     */
+    private static void octal(byte[] header, int offset, int length, long value) {
+        String digits = Long.toOctalString(value);
+        int width = length - 1;
+        for (int i = 0; i < width; i++) {
+            int digit = i - (width - digits.length());
+            header[offset + i] = (byte) (digit < 0 ? '0' : digits.charAt(digit));
+        }
+        header[offset + width] = 0;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.benoitduffez.gocd.redmine;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Circuit breaker of a Redmine server, shared by all the tasks running in the plugin JVM.
+ * <p>
+ * After a number of consecutive failures (network errors, timeouts, server errors), the circuit opens: the requests to
+ * that server fail right away instead of waiting for their timeouts, and so do the jobs. Once the open time is over,
+ * the circuit is half-open: one request is let through to probe the server, and closes the circuit if it succeeds, or
+ * opens it again if it fails. Any response that is not a server error means that the server is back.
+ */
+public class CircuitBreaker {
+    public static final int DEFAULT_FAILURES = 5;
+    public static final int DEFAULT_OPEN_SECONDS = 30;
+
+    private static final Map<String, CircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+
+    private final String redmineUrl;
+    private final int maxFailures;
+    private final long openNanos;
+
+    private int failures;
+    private boolean open;
+    private long openedAt;
+    private boolean probing;
+    private String lastError;
+
+    /**
+     * @param redmineUrl  Redmine URL
+     * @param maxFailures Number of consecutive failures that open the circuit, 0 to never open it
+     * @param openMs      How long the circuit stays open before a request probes the server
+     */
+    CircuitBreaker(String redmineUrl, int maxFailures, long openMs) {
+        this.redmineUrl = redmineUrl;
+        this.maxFailures = maxFailures;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMs);
+    }
+
+    /**
+     * Get the circuit breaker of a Redmine server, the requests to that URL go through it from then on. It is created
+     * with the {@code GOCD_REDMINE_CIRCUIT_FAILURES} and {@code GOCD_REDMINE_CIRCUIT_OPEN_TIME} (seconds) environment
+     * variables of the agent, if any.
+     *
+     * @param redmineUrl Redmine URL
+     * @return The circuit breaker of that URL
+     */
+    public static CircuitBreaker forUrl(String redmineUrl) {
+        return BREAKERS.computeIfAbsent(normalize(redmineUrl), url -> new CircuitBreaker(url,
+                TaskConfig.parseInt(System.getenv("GOCD_REDMINE_CIRCUIT_FAILURES"), 0, DEFAULT_FAILURES),
+                TimeUnit.SECONDS.toMillis(TaskConfig.parseInt(System.getenv("GOCD_REDMINE_CIRCUIT_OPEN_TIME"), 1, DEFAULT_OPEN_SECONDS))));
+    }
+
+    /**
+     * @param url URL of a request
+     * @return The circuit breaker of the Redmine server of that URL, or null if there is none
+     */
+    static CircuitBreaker find(String url) {
+        CircuitBreaker found = null;
+        for (Map.Entry<String, CircuitBreaker> breaker : BREAKERS.entrySet()) {
+            String key = breaker.getKey();
+            boolean matches = url.startsWith(key) && (url.length() == key.length() || "/?#".indexOf(url.charAt(key.length())) >= 0);
+            if (matches && (found == null || key.length() > found.redmineUrl.length())) {
+                found = breaker.getValue();
+            }
+        }
+        return found;
+    }
+
+    private static String normalize(String redmineUrl) {
+        String url = redmineUrl.trim();
+        while (url.endsWith("/")) {
+            url = url.substring(0, url.length() - 1);
+        }
+        return url;
+    }
+
+    /**
+     * Fail if the circuit is open, without using the probe of a half-open circuit
+     *
+     * @throws OpenException If the circuit is open
+     */
+    public synchronized void check() throws OpenException {
+        if (open && (probing || System.nanoTime() - openedAt < openNanos)) {
+            throw new OpenException(this);
+        }
+    }
+
+    /**
+     * Called before a request: fail if the circuit is open, or let the request probe the server if it is half-open
+     *
+     * @throws OpenException If the circuit is open
+     */
+    synchronized void acquire() throws OpenException {
+        check();
+        if (open) {
+            probing = true;
+        }
+    }
+
+    /**
+     * Called after a request that was {@link #acquire() acquired}
+     *
+     * @param error Error of the request, null if it succeeded
+     */
+    synchronized void record(Throwable error) {
+        boolean wasProbing = probing;
+        probing = false;
+        if (error == null || !isServerFailure(error)) {
+            if (error == null || error instanceof RedmineException) {
+                if (open) {
+                    TaskPlugin.LOGGER.info("Redmine at " + redmineUrl + " is back, closing the circuit");
+                }
+                failures = 0;
+                open = false;
+            }
+            return;
+        }
+
+        failures++;
+        lastError = String.valueOf(error);
+        if (wasProbing || (maxFailures > 0 && failures >= maxFailures && !open)) {
+            TaskPlugin.LOGGER.warn("Opening the circuit of Redmine at " + redmineUrl + " after " + failures + " consecutive failures: " + lastError);
+            open = true;
+            openedAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * @return Whether the error tells that the server is unavailable: a connection error, a timeout or a server error.
+     * Client errors mean that it is up, and local errors (missing file, interrupted job, a body that couldn't be read
+     * from its file) tell nothing about it.
+     */
+    static boolean isServerFailure(Throwable error) {
+        if (error instanceof RedmineException) {
+            return ((RedmineException) error).isTransient();
+        }
+        return error instanceof SocketException || error instanceof SocketTimeoutException || error instanceof UnknownHostException;
+    }
+
+    /**
+     * A request was not sent, because the circuit of the server is open
+     */
+    public static class OpenException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        OpenException(CircuitBreaker breaker) {
+            super("Redmine at " + breaker.redmineUrl + " is unavailable: " + breaker.failures + " consecutive failures, the last one was "
+                    + breaker.lastError + ". Next attempt in " + breaker.secondsBeforeProbe() + " s");
+        }
+    }
+
+    private long secondsBeforeProbe() {
+        return Math.max(0, TimeUnit.NANOSECONDS.toSeconds(openNanos - (System.nanoTime() - openedAt)) + 1);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.benoitduffez.gocd.redmine;
+
+import java.io.IOException;
+
+/**
+ * {@link Transport} that sends the requests to a Redmine server through the {@link CircuitBreaker} of that server, if
+ * it has one
+ */
+public class CircuitBreakerTransport implements Transport {
+    private final Transport transport;
+
+    /**
+     * @param transport Transport that sends the requests
+     */
+    public CircuitBreakerTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    @Override
+    public String get(String url, String apiKey) throws IOException {
+        return call(url, () -> transport.get(url, apiKey));
+    }
+
+    @Override
+    public <T> T get(String url, String apiKey, Class<T> type) throws IOException {
+        return call(url, () -> transport.get(url, apiKey, type));
+    }
+
+    @Override
+    public String post(String url, String apiKey, String contentType, byte[] body) throws IOException {
+        return call(url, () -> transport.post(url, apiKey, contentType, body));
+    }
+
+    @Override
+    public String send(String url, String method, String apiKey, String contentType, long length, Body body) throws IOException {
+        return call(url, () -> transport.send(url, method, apiKey, contentType, length, body));
+    }
+
+    @Override
+    public <T> T send(String url, String method, String apiKey, String contentType, long length, Body body, Class<T> type) throws IOException {
+        return call(url, () -> transport.send(url, method, apiKey, contentType, length, body, type));
+    }
+
+    @Override
+    public String delete(String url, String apiKey) throws IOException {
+        return call(url, () -> transport.delete(url, apiKey));
+    }
+
+    @Override
+    public void warmUp() {
+        transport.warmUp();
+    }
+
+    private static <T> T call(String url, Retry.Call<T> request) throws IOException {
+        CircuitBreaker breaker = CircuitBreaker.find(url);
+        if (breaker == null) {
+            return request.call();
+        }
+
+        breaker.acquire();
+        Throwable error = null;
+        try {
+            return request.call();
+        } catch (IOException | RuntimeException | Error e) {
+            error = e;
+            throw e;
+        } finally {
+            breaker.record(error);
+        }
+    }
+}
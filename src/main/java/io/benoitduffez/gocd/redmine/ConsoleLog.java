@@ -0,0 +1,244 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.benoitduffez.gocd.redmine;
+
+import com.thoughtworks.go.plugin.api.task.JobConsoleLogger;
+
+import java.io.Closeable;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Job console of a task: lines below the configured level are dropped, secrets are redacted, and the lines are sent to
+ * GoCD in batches, when enough of them are buffered or at the latest {@link #FLUSH_INTERVAL_MS} after they were
+ * logged.
+ * <p>
+ * It is a {@link JobConsoleLogger}, so that the classes that only print lines don't depend on it: {@link #printLine}
+ * logs at the info level.
+ */
+public class ConsoleLog extends JobConsoleLogger implements Closeable {
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    static final long FLUSH_INTERVAL_MS = 1000;
+    private static final int MAX_BUFFERED_LINES = 100;
+    private static final int MAX_BUFFERED_CHARS = 32 * 1024;
+
+    /**
+     * Number of stack frames from other packages printed before they are collapsed
+     */
+    private static final int MAX_FOREIGN_FRAMES = 2;
+    private static final String PACKAGE = ConsoleLog.class.getPackage().getName() + ".";
+
+    private static final String REDACTED = "****";
+
+    /**
+     * Redmine upload tokens ("<attachment id>.<digest>") and token fields of the JSON bodies
+     */
+    private static final Pattern TOKENS = Pattern.compile("\\b\\d+\\.[0-9a-f]{32,64}\\b|(\"token\"\\s*:\\s*\")[^\"]*(\")");
+
+    private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "redmine-console-flush");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final JobConsoleLogger console;
+    private final Level level;
+    private final Set<String> secrets = new CopyOnWriteArraySet<>();
+    private final StringBuilder buffer = new StringBuilder();
+    private final ScheduledFuture<?> flusher;
+    private int bufferedLines;
+    private long firstBufferedAt;
+
+    /**
+     * @param console GoCD console
+     * @param level   Lowest level that is printed
+     */
+    public ConsoleLog(JobConsoleLogger console, Level level) {
+        this.console = console;
+        this.level = level;
+        flusher = FLUSHER.scheduleWithFixedDelay(this::flushIfDue, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS / 2, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param value Level name, case insensitive
+     * @return The level, or {@link Level#INFO} if the value is empty or unknown
+     */
+    public static Level parseLevel(String value) {
+        if (value != null && !value.trim().isEmpty()) {
+            try {
+                return Level.valueOf(value.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException ignored) {
+                // Not a level
+            }
+        }
+        return Level.INFO;
+    }
+
+    /**
+     * @param secret Value replaced with {@value #REDACTED} in all the lines printed from now on
+     */
+    public void addSecret(String secret) {
+        if (secret != null && !secret.trim().isEmpty()) {
+            secrets.add(secret);
+        }
+    }
+
+    public boolean isDebugEnabled() {
+        return level == Level.DEBUG;
+    }
+
+    public void debug(String line) {
+        log(Level.DEBUG, line);
+    }
+
+    public void info(String line) {
+        log(Level.INFO, line);
+    }
+
+    public void warn(String line) {
+        log(Level.WARN, line);
+    }
+
+    public void error(String line) {
+        log(Level.ERROR, line);
+    }
+
+    /**
+     * Print an error with its stack trace: all the frames at the debug level, otherwise only the frames of the plugin,
+     * with the frames of other packages collapsed
+     */
+    public void error(String line, Throwable error) {
+        if (level.compareTo(Level.ERROR) > 0) {
+            return;
+        }
+        StringBuilder trace = new StringBuilder(line);
+        for (Throwable cause = error; cause != null; cause = cause.getCause() == cause ? null : cause.getCause()) {
+            if (cause != error) {
+                trace.append("\nCaused by: ").append(cause);
+            }
+            int foreign = 0;
+            int collapsed = 0;
+            for (StackTraceElement frame : cause.getStackTrace()) {
+                foreign = frame.getClassName().startsWith(PACKAGE) ? 0 : foreign + 1;
+                if (isDebugEnabled() || foreign <= MAX_FOREIGN_FRAMES) {
+                    appendCollapsed(trace, collapsed);
+                    collapsed = 0;
+                    trace.append("\n   at: ").append(frame);
+                } else {
+                    collapsed++;
+                }
+            }
+            appendCollapsed(trace, collapsed);
+        }
+        log(Level.ERROR, trace.toString());
+    }
+
+    private static void appendCollapsed(StringBuilder trace, int collapsed) {
+        if (collapsed > 0) {
+            trace.append("\n   ... ").append(collapsed).append(" more");
+        }
+    }
+
+    @Override
+    public void printLine(String line) {
+        log(Level.INFO, line);
+    }
+
+    private void log(Level lineLevel, String line) {
+        if (lineLevel.compareTo(level) < 0) {
+            return;
+        }
+        String redacted = redact(line);
+        synchronized (this) {
+            if (bufferedLines == 0) {
+                firstBufferedAt = System.nanoTime();
+            } else {
+                buffer.append('\n');
+            }
+            buffer.append(redacted);
+            bufferedLines++;
+            if (bufferedLines >= MAX_BUFFERED_LINES || buffer.length() >= MAX_BUFFERED_CHARS) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * @return The line without the API key, the upload tokens and the other secrets
+     */
+    String redact(String line) {
+        if (line == null) {
+            return null;
+        }
+        String redacted = line;
+        for (String secret : secrets) {
+            redacted = redacted.replace(secret, REDACTED);
+        }
+        Matcher matcher = TOKENS.matcher(redacted);
+        if (!matcher.find()) {
+            return redacted;
+        }
+        StringBuffer result = new StringBuffer(redacted.length());
+        do {
+            matcher.appendReplacement(result, matcher.group(1) == null ? REDACTED : "$1" + REDACTED + "$2");
+        } while (matcher.find());
+        matcher.appendTail(result);
+        return result.toString();
+    }
+
+    private synchronized void flushIfDue() {
+        if (bufferedLines > 0 && System.nanoTime() - firstBufferedAt >= TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MS)) {
+            flush();
+        }
+    }
+
+    /**
+     * Send the buffered lines to GoCD, in a single call
+     */
+    public synchronized void flush() {
+        if (bufferedLines == 0) {
+            return;
+        }
+        String lines = buffer.toString();
+        buffer.setLength(0);
+        bufferedLines = 0;
+        try {
+            console.printLine(lines);
+        } catch (RuntimeException e) {
+            TaskPlugin.LOGGER.warn("Couldn't print to the job console", e);
+        }
+    }
+
+    /**
+     * Flush the remaining lines and stop the periodic flush
+     */
+    @Override
+    public void close() {
+        flusher.cancel(false);
+        flush();
+    }
+}
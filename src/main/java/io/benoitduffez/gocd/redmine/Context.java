@@ -16,22 +16,87 @@
 
 package io.benoitduffez.gocd.redmine;
 
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 
 public class Context {
-    private final Map environmentVariables;
+    private final Map<String, String> environmentVariables;
     private final String workingDir;
 
-    public Context(Map context) {
-        environmentVariables = (Map) context.get("environmentVariables");
-        workingDir = (String) context.get("workingDirectory");
+    /**
+     * @param environmentVariables Environment variables of the job
+     * @param workingDir           Working directory of the job
+     */
+    public Context(Map<String, String> environmentVariables, String workingDir) {
+        this.environmentVariables = Collections.unmodifiableMap(new HashMap<>(environmentVariables));
+        this.workingDir = workingDir;
     }
 
-    public Map getEnvironmentVariables() {
+    public Map<String, String> getEnvironmentVariables() {
         return environmentVariables;
     }
 
     public String getWorkingDir() {
         return workingDir;
     }
+
+    /**
+     * Reads the task context as GoCD sends it, {"environmentVariables":{...},"workingDirectory":"..."}, straight from
+     * the request body
+     */
+    static class Adapter extends TypeAdapter<Context> {
+        @Override
+        public void write(JsonWriter out, Context context) throws IOException {
+            if (context == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject().name("environmentVariables").beginObject();
+            for (Map.Entry<String, String> entry : context.environmentVariables.entrySet()) {
+                out.name(entry.getKey()).value(entry.getValue());
+            }
+            out.endObject().name("workingDirectory").value(context.workingDir).endObject();
+        }
+
+        @Override
+        public Context read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            Map<String, String> environmentVariables = new HashMap<>();
+            String workingDir = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                } else if ("environmentVariables".equals(name)) {
+                    in.beginObject();
+                    while (in.hasNext()) {
+                        String variable = in.nextName();
+                        if (in.peek() == JsonToken.NULL) {
+                            in.nextNull();
+                        } else {
+                            environmentVariables.put(variable, in.nextString());
+                        }
+                    }
+                    in.endObject();
+                } else if ("workingDirectory".equals(name)) {
+                    workingDir = in.nextString();
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return new Context(environmentVariables, workingDir);
+        }
+    }
 }
@@ -16,23 +16,62 @@
 
 package io.benoitduffez.gocd.redmine;
 
-import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
 import com.thoughtworks.go.plugin.api.request.GoPluginApiRequest;
 import com.thoughtworks.go.plugin.api.response.DefaultGoPluginApiResponse;
 import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
 import com.thoughtworks.go.plugin.api.task.JobConsoleLogger;
 
 import java.io.IOException;
-import java.util.Map;
+import java.io.StringReader;
 
 public class ExecuteRequest {
     public GoPluginApiResponse execute(GoPluginApiRequest request) throws IOException {
-        Map executionRequest = (Map) new GsonBuilder().create().fromJson(request.requestBody(), Object.class);
-        Map config = (Map) executionRequest.get("config");
-        Map context = (Map) executionRequest.get("context");
+        Decoded decoded = decode(request.requestBody());
 
         RedmineUploadFileTaskExecutor executor = new RedmineUploadFileTaskExecutor();
-        Result result = executor.execute(new TaskConfig(config), new Context(context), JobConsoleLogger.getConsoleLogger());
+        Result result = executor.execute(decoded.config, decoded.context, JobConsoleLogger.getConsoleLogger());
         return new DefaultGoPluginApiResponse(result.responseCode(), TaskPlugin.GSON.toJson(result.toMap()));
     }
+
+    /**
+     * @param requestBody Body of the execute request: {"config":{...},"context":{...}}
+     * @return The task configuration and context
+     * @throws IOException If the body is not a valid execute request
+     */
+    static Decoded decode(String requestBody) throws IOException {
+        TaskConfig config = null;
+        Context context = null;
+        try (JsonReader reader = new JsonReader(new StringReader(requestBody))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("config".equals(name)) {
+                    config = TaskPlugin.GSON.getAdapter(TaskConfig.class).read(reader);
+                } else if ("context".equals(name)) {
+                    context = TaskPlugin.GSON.getAdapter(Context.class).read(reader);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException | JsonParseException e) {
+            throw new IOException("Invalid execute request: " + e.getMessage(), e);
+        }
+        if (config == null || context == null) {
+            throw new IOException("Invalid execute request: config and context are required");
+        }
+        return new Decoded(config, context);
+    }
+
+    static class Decoded {
+        final TaskConfig config;
+        final Context context;
+
+        Decoded(TaskConfig config, Context context) {
+            this.config = config;
+            this.context = context;
+        }
+    }
 }
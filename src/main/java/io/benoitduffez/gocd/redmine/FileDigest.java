@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.benoitduffez.gocd.redmine;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Content digests of a file, as computed by Redmine for its attachments: SHA-256 since Redmine 4, MD5 before.
+ * <p>
+ * Both are computed in a single read of the file, shared by the concurrent executions that hash the same file, and
+ * cached by file path, size and modification time.
+ */
+public class FileDigest {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int MAX_CACHE_SIZE = 1000;
+
+    private static final Map<String, FileDigest> CACHE = new ConcurrentHashMap<>();
+
+    private static final SingleFlight<String, FileDigest> IN_FLIGHT = new SingleFlight<>();
+
+    private static final ThreadLocal<ByteBuffer> BUFFER = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    };
+
+    private final String sha256;
+    private final String md5;
+
+    private FileDigest(String sha256, String md5) {
+        this.sha256 = sha256;
+        this.md5 = md5;
+    }
+
+    /**
+     * @param file File to hash
+     * @return The digests of the file, read from the cache if the file didn't change since it was last hashed
+     * @throws IOException In case of I/O error
+     */
+    public static FileDigest of(File file) throws IOException {
+        String key = file.getCanonicalPath() + "|" + file.length() + "|" + file.lastModified();
+        FileDigest digest = CACHE.get(key);
+        if (digest == null) {
+            // Concurrent executions publishing the same file wait for a single read of it
+            digest = IN_FLIGHT.run(key, () -> {
+                FileDigest cached = CACHE.get(key);
+                if (cached != null) {
+                    return cached;
+                }
+                FileDigest computed = compute(file);
+                if (CACHE.size() >= MAX_CACHE_SIZE) {
+                    CACHE.clear();
+                }
+                CACHE.put(key, computed);
+                return computed;
+            });
+        }
+        return digest;
+    }
+
+    private static FileDigest compute(File file) throws IOException {
+        MessageDigest sha256 = newDigest("SHA-256");
+        MessageDigest md5 = newDigest("MD5");
+        ByteBuffer buffer = BUFFER.get();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer.clear();
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                sha256.update(buffer);
+                buffer.rewind();
+                md5.update(buffer);
+                buffer.clear();
+            }
+        }
+        return new FileDigest(toHex(sha256.digest()), toHex(md5.digest()));
+    }
+
+    static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(algorithm + " is not available", e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = Character.forDigit((bytes[i] >> 4) & 0xF, 16);
+            hex[2 * i + 1] = Character.forDigit(bytes[i] & 0xF, 16);
+        }
+        return new String(hex);
+    }
+
+    public String getSha256() {
+        return sha256;
+    }
+
+    public String getMd5() {
+        return md5;
+    }
+
+    /**
+     * @param redmineDigest Digest of an attachment, as returned by Redmine
+     * @return Whether it is the digest of this file
+     */
+    public boolean matches(String redmineDigest) {
+        return redmineDigest != null && (redmineDigest.equalsIgnoreCase(sha256) || redmineDigest.equalsIgnoreCase(md5));
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.benoitduffez.gocd.redmine;
+
+import com.thoughtworks.go.plugin.api.task.JobConsoleLogger;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads a file while another process is still writing it, until it is complete: either when a marker file
+ * ({@code <file>.done}) appears, or when the file didn't grow for a quiet period
+ */
+public class FileFollower {
+    public static final String MARKER_SUFFIX = ".done";
+    private static final long POLL_INTERVAL_MS = 500;
+
+    private final File file;
+    private final File marker;
+    private final long quietPeriodMs;
+    private final JobConsoleLogger console;
+
+    /**
+     * @param file          File being written
+     * @param quietPeriodMs How long the file must stay the same size to be considered complete, when there is no marker
+     * @param console       Logging console
+     */
+    public FileFollower(File file, long quietPeriodMs, JobConsoleLogger console) {
+        this.file = file;
+        this.marker = new File(file.getPath() + MARKER_SUFFIX);
+        this.quietPeriodMs = quietPeriodMs;
+        this.console = console;
+    }
+
+    /**
+     * Wait for the file to exist, then send its content as it is written, until it is complete
+     *
+     * @param output Where to send the content
+     * @return Size of the complete file
+     * @throws IOException If the file doesn't appear within the quiet period, if it gets truncated, or in case of I/O error
+     */
+    public long copyTo(OutputStream output) throws IOException {
+        awaitFile();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long lastGrowth = System.nanoTime();
+            while (true) {
+                // Checked before reading: everything written before the marker was created is read below
+                boolean complete = marker.exists();
+                long read = RedmineUploadFileTaskExecutor.streamFile(channel, output);
+                if (channel.size() < channel.position()) {
+                    throw new IOException(file + " was truncated while it was being uploaded");
+                }
+                if (complete) {
+                    console.printLine(file + " is complete (" + marker.getName() + " found), " + channel.position() + " bytes");
+                    return channel.position();
+                }
+
+                long now = System.nanoTime();
+                if (read > 0) {
+                    lastGrowth = now;
+                } else if (now - lastGrowth >= TimeUnit.MILLISECONDS.toNanos(quietPeriodMs)) {
+                    console.printLine(file + " didn't change for " + TimeUnit.MILLISECONDS.toSeconds(quietPeriodMs) + "s, considered complete, " + channel.position() + " bytes");
+                    return channel.position();
+                }
+                sleep();
+            }
+        }
+    }
+
+    private void awaitFile() throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(quietPeriodMs);
+        if (!file.exists()) {
+            console.printLine("Waiting for " + file + " to be created");
+        }
+        while (!file.exists()) {
+            if (marker.exists() || System.nanoTime() >= deadline) {
+                throw new FileNotFoundException("Artifact not found: " + file.getAbsolutePath());
+            }
+            sleep();
+        }
+    }
+
+    private static void sleep() throws InterruptedIOException {
+        try {
+            Thread.sleep(POLL_INTERVAL_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while following a file");
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.benoitduffez.gocd.redmine;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+
+/**
+ * Expands the File Path configuration (a list of paths and/or glob patterns) into the files to upload
+ */
+public class FileMatcher {
+    private static final String GLOB_CHARS = "*?[{";
+
+    /**
+     * Find all the files matching the given paths and patterns
+     *
+     * @param workingDir Go working dir, paths are relative to it
+     * @param paths      Plain paths or glob patterns (e.g. {@code app/build/outputs/apk/**}{@code /*.apk})
+     * @return Matching files, sorted and without duplicates
+     * @throws IOException If a plain path doesn't exist, or in case of I/O error while walking the file tree
+     */
+    public static List<File> resolve(String workingDir, List<String> paths) throws IOException {
+        Set<File> files = new TreeSet<>();
+        for (String path : paths) {
+            if (isGlob(path)) {
+                files.addAll(glob(new File(workingDir), path));
+            } else {
+                File file = new File(workingDir, path);
+                if (!file.exists()) {
+                    throw new FileNotFoundException("Artifact not found: " + file.getAbsolutePath());
+                }
+                files.add(file);
+            }
+        }
+        return new ArrayList<>(files);
+    }
+
+    static boolean isGlob(String path) {
+        for (int i = 0; i < path.length(); i++) {
+            if (GLOB_CHARS.indexOf(path.charAt(i)) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<File> glob(File workingDir, String pattern) throws IOException {
+        // Only walk the part of the tree that can match: the directories before the first wildcard
+        String normalized = pattern.replace('\\', '/');
+        int wildcard = 0;
+        while (GLOB_CHARS.indexOf(normalized.charAt(wildcard)) < 0) {
+            wildcard++;
+        }
+        int lastSlash = normalized.lastIndexOf('/', wildcard);
+        Path root = workingDir.toPath();
+        Path start = lastSlash < 0 ? root : root.resolve(normalized.substring(0, lastSlash));
+
+        List<File> files = new ArrayList<>();
+        if (!Files.isDirectory(start)) {
+            return files;
+        }
+
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + normalized);
+        try (Stream<Path> walk = Files.walk(start)) {
+            walk.filter(Files::isRegularFile)
+                    .filter(path -> matcher.matches(root.relativize(path)))
+                    .forEach(path -> files.add(path.toFile()));
+        }
+        return files;
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.benoitduffez.gocd.redmine;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.TemporalAccessor;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Compiled File Name template.
+ * <p>
+ * Supported placeholders:
+ * <ul>
+ * <li>{@code %X}: a single letter placeholder, see {@link #PLACEHOLDERS} (unknown letters are kept as is)</li>
+ * <li>{@code %{NAME}}: the value of the NAME environment variable</li>
+ * <li>{@code %{date:PATTERN}}: the current date, formatted with a {@link DateTimeFormatter} pattern</li>
+ * <li>{@code %%}: a percent sign</li>
+ * </ul>
+ * Templates are parsed once into literal and placeholder segments, and cached for the life of the plugin JVM.
+ * Placeholder values are only requested when the template uses them.
+ */
+public class FileNameTemplate {
+    /**
+     * Single letter placeholders, see {@link Values#get(char)}
+     */
+    public static final String PLACEHOLDERS = "RrPCLAFSHh";
+
+    private static final int MAX_CACHE_SIZE = 100;
+
+    /**
+     * Extension at the end of a template, e.g. {@code .apk} or {@code .tar.gz}: it doesn't tell which files a template
+     * produced
+     */
+    private static final Pattern EXTENSION = Pattern.compile("(\\.[A-Za-z0-9]+)+$");
+
+    /**
+     * Minimum number of letters and digits of the literal text of a template for it to name its files
+     */
+    private static final int MIN_STEM_LENGTH = 2;
+
+    private static final Map<String, FileNameTemplate> CACHE = new ConcurrentHashMap<>();
+
+    /**
+     * Provides the values of the placeholders
+     */
+    public interface Values {
+        /**
+         * @param placeholder One of {@link #PLACEHOLDERS}
+         * @return The value of the placeholder, or null if it is not available
+         */
+        String get(char placeholder);
+
+        /**
+         * @return The value of an environment variable, or null if it is not defined
+         */
+        String env(String name);
+
+        /**
+         * @return The date used by the date placeholders
+         */
+        default TemporalAccessor now() {
+            return ZonedDateTime.now();
+        }
+    }
+
+    private interface Segment {
+        void appendTo(StringBuilder fileName, Values values);
+
+        /**
+         * Append a regular expression matching the values of this segment, anything by default
+         */
+        default void appendPattern(StringBuilder regex, Values values, String fixed) {
+            regex.append(".+");
+        }
+
+        /**
+         * @return Whether this placeholder is the same for all the runs, given the fixed placeholders
+         */
+        default boolean isFixed(String fixed) {
+            return false;
+        }
+
+        /**
+         * @return The text of a literal segment, null for a placeholder
+         */
+        default String getText() {
+            return null;
+        }
+    }
+
+    private final String template;
+    private final List<Segment> segments;
+    private final String placeholders;
+
+    private FileNameTemplate(String template, List<Segment> segments, String placeholders) {
+        this.template = template;
+        this.segments = segments;
+        this.placeholders = placeholders;
+    }
+
+    /**
+     * @param template File Name template
+     * @return The compiled template, from the cache if it was already compiled
+     * @throws IllegalArgumentException If a date pattern is invalid
+     */
+    public static FileNameTemplate compile(String template) {
+        FileNameTemplate compiled = CACHE.get(template);
+        if (compiled == null) {
+            compiled = parse(template);
+            if (CACHE.size() >= MAX_CACHE_SIZE) {
+                CACHE.clear();
+            }
+            CACHE.put(template, compiled);
+        }
+        return compiled;
+    }
+
+    private static FileNameTemplate parse(String template) {
+        List<Segment> segments = new ArrayList<>();
+        StringBuilder placeholders = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < template.length()) {
+            char c = template.charAt(i);
+            char next = i + 1 < template.length() ? template.charAt(i + 1) : 0;
+            int close = next == '{' ? template.indexOf('}', i + 2) : -1;
+            if (c != '%') {
+                literal.append(c);
+                i++;
+            } else if (next == '%') {
+                literal.append('%');
+                i += 2;
+            } else if (PLACEHOLDERS.indexOf(next) >= 0) {
+                addLiteral(segments, literal);
+                segments.add(placeholder(next));
+                placeholders.append(next);
+                i += 2;
+            } else if (close > 0) {
+                addLiteral(segments, literal);
+                segments.add(named(template.substring(i + 2, close)));
+                i = close + 1;
+            } else {
+                literal.append(c);
+                i++;
+            }
+        }
+        addLiteral(segments, literal);
+        return new FileNameTemplate(template, Collections.unmodifiableList(segments), placeholders.toString());
+    }
+
+    private static Segment named(String name) {
+        if (name.startsWith("date:")) {
+            DateTimeFormatter formatter = DateTimeFormatter.ofPattern(name.substring("date:".length()));
+            return (fileName, values) -> formatter.formatTo(values.now(), fileName);
+        }
+        return (fileName, values) -> append(fileName, values.env(name));
+    }
+
+    private static Segment placeholder(char placeholder) {
+        return new Segment() {
+            @Override
+            public void appendTo(StringBuilder fileName, Values values) {
+                append(fileName, values.get(placeholder));
+            }
+
+            @Override
+            public void appendPattern(StringBuilder regex, Values values, String fixed) {
+                String value = fixed.indexOf(placeholder) >= 0 ? values.get(placeholder) : null;
+                regex.append(value == null ? ".+" : Pattern.quote(value));
+            }
+
+            @Override
+            public boolean isFixed(String fixed) {
+                return fixed.indexOf(placeholder) >= 0;
+            }
+        };
+    }
+
+    private static void addLiteral(List<Segment> segments, StringBuilder literal) {
+        if (literal.length() > 0) {
+            String text = literal.toString();
+            segments.add(new Segment() {
+                @Override
+                public void appendTo(StringBuilder fileName, Values values) {
+                    fileName.append(text);
+                }
+
+                @Override
+                public void appendPattern(StringBuilder regex, Values values, String fixed) {
+                    regex.append(Pattern.quote(text));
+                }
+
+                @Override
+                public String getText() {
+                    return text;
+                }
+            });
+            literal.setLength(0);
+        }
+    }
+
+    private static void append(StringBuilder fileName, String value) {
+        if (value != null) {
+            fileName.append(value);
+        }
+    }
+
+    /**
+     * @param values Placeholder values
+     * @return The file name
+     */
+    public String expand(Values values) {
+        StringBuilder fileName = new StringBuilder(template.length() + 32);
+        for (Segment segment : segments) {
+            segment.appendTo(fileName, values);
+        }
+        return fileName.toString();
+    }
+
+    /**
+     * @param values Values of the fixed placeholders
+     * @param fixed  Single letter placeholders that keep their value: the other placeholders, the environment variables
+     *               and the dates match anything
+     * @return A pattern matching the file names produced by this template, e.g. by the previous runs of the pipeline
+     */
+    public Pattern toPattern(Values values, String fixed) {
+        StringBuilder regex = new StringBuilder();
+        for (Segment segment : segments) {
+            segment.appendPattern(regex, values, fixed);
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * @return Whether the file names tell which files this template produced: it uses one of the fixed placeholders,
+     * or its literal text has a name besides the extension. Otherwise {@link #toPattern(Values, String)} matches any
+     * name, or any name with the same extension (e.g. {@code %C.apk}).
+     */
+    public boolean hasFixedText(String fixed) {
+        int stemLength = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            Segment segment = segments.get(i);
+            if (segment.isFixed(fixed)) {
+                return true;
+            }
+            String text = segment.getText();
+            if (text != null) {
+                String stem = i == segments.size() - 1 ? EXTENSION.matcher(text).replaceFirst("") : text;
+                for (int c = 0; c < stem.length(); c++) {
+                    if (Character.isLetterOrDigit(stem.charAt(c))) {
+                        stemLength++;
+                    }
+                }
+            }
+        }
+        return stemLength >= MIN_STEM_LENGTH;
+    }
+
+    /**
+     * @return Whether the template uses the given single letter placeholder
+     */
+    public boolean uses(char placeholder) {
+        return placeholders.indexOf(placeholder) >= 0;
+    }
+
+    public String getTemplate() {
+        return template;
+    }
+}
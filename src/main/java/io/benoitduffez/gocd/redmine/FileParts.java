@@ -0,0 +1,165 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.benoitduffez.gocd.redmine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Splitting of the files that are larger than what Redmine accepts ({@code attachment_max_size}) into parts, uploaded
+ * separately with a manifest to check and reassemble them
+ */
+public class FileParts {
+    public static final String MANIFEST_SUFFIX = ".manifest";
+
+    /**
+     * Size in the validation error of Redmine, e.g. "... exceeds the maximum allowed file size (5 MB)"
+     */
+    private static final Pattern MAX_SIZE = Pattern.compile("\\((\\d+(?:[.,]\\d+)?)\\s*(Bytes?|KB|MB|GB|TB)\\)");
+
+    /**
+     * Limits learnt from upload errors, by Redmine URL, kept for the life of the plugin JVM
+     */
+    private static final Map<String, Long> DETECTED_MAX_SIZES = new ConcurrentHashMap<>();
+
+    private FileParts() {
+    }
+
+    /**
+     * @param redmineUrl       Redmine URL
+     * @param configuredMaxKiB Max file size from the task configuration, in KB, or 0 if not set
+     * @return The size above which files are split, or 0 if it is not known
+     */
+    public static long getMaxFileSize(String redmineUrl, int configuredMaxKiB) {
+        if (configuredMaxKiB > 0) {
+            return configuredMaxKiB * 1024L;
+        }
+        Long detected = DETECTED_MAX_SIZES.get(redmineUrl);
+        return detected == null ? 0 : detected;
+    }
+
+    /**
+     * Learn the max file size of Redmine from the error returned for an upload that is too large, and remember it for
+     * the next uploads
+     *
+     * @param redmineUrl Redmine URL
+     * @param e          Upload error
+     * @return The max file size, or 0 if the error is not about the file size
+     */
+    public static long detectMaxFileSize(String redmineUrl, RedmineException e) {
+        if (e.getStatusCode() != 422 || e.getMessage() == null) {
+            return 0;
+        }
+        Matcher matcher = MAX_SIZE.matcher(e.getMessage());
+        if (!matcher.find()) {
+            return 0;
+        }
+        double value = Double.parseDouble(matcher.group(1).replace(',', '.'));
+        int shift = "BKMGT".indexOf(matcher.group(2).toUpperCase(Locale.ROOT).charAt(0)) * 10;
+        // Redmine rounds the size it displays to 3 significant digits, stay below it
+        long maxSize = (long) (value * (1L << shift) * 0.99);
+        if (maxSize > 0) {
+            DETECTED_MAX_SIZES.put(redmineUrl, maxSize);
+        }
+        return maxSize;
+    }
+
+    /**
+     * @param name        Name of the file in Redmine
+     * @param size        Size of the file
+     * @param maxPartSize Maximum size of a part
+     * @return The parts, named {@code <name>.part001} and so on
+     */
+    public static List<Part> split(String name, long size, long maxPartSize) {
+        int count = (int) ((size + maxPartSize - 1) / maxPartSize);
+        int digits = Math.max(3, String.valueOf(count).length());
+        List<Part> parts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long offset = i * maxPartSize;
+            parts.add(new Part(String.format(Locale.ROOT, "%s.part%0" + digits + "d", name, i + 1), offset, Math.min(maxPartSize, size - offset)));
+        }
+        return parts;
+    }
+
+    /**
+     * @param name   Name of the file in Redmine
+     * @param size   Size of the file
+     * @param sha256 SHA-256 of the file
+     * @param parts  Parts of the file, once uploaded
+     * @return Manifest listing the parts and their SHA-256, in the format of sha256sum, with the commands to check and
+     * reassemble the file in comments
+     */
+    public static String manifest(String name, long size, String sha256, List<Part> parts) {
+        StringBuilder manifest = new StringBuilder();
+        manifest.append("# ").append(name).append(": ").append(size).append(" bytes in ").append(parts.size()).append(" parts, SHA-256 ").append(sha256).append('\n');
+        manifest.append("# Check and reassemble with:\n");
+        manifest.append("#   grep -v '^#' '").append(name).append(MANIFEST_SUFFIX).append("' | sha256sum -c - && cat");
+        for (Part part : parts) {
+            manifest.append(" '").append(part.getName()).append('\'');
+        }
+        manifest.append(" > '").append(name).append("'\n");
+        manifest.append("#   echo '").append(sha256).append("  ").append(name).append("' | sha256sum -c -\n");
+        for (Part part : parts) {
+            manifest.append(part.getSha256()).append("  ").append(part.getName()).append('\n');
+        }
+        return manifest.toString();
+    }
+
+    /**
+     * A range of the file, uploaded as a separate file
+     */
+    public static class Part {
+        private final String name;
+        private final long offset;
+        private final long length;
+        private volatile String sha256;
+
+        Part(String name, long offset, long length) {
+            this.name = name;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * @return SHA-256 of the part, once it is uploaded
+         */
+        public String getSha256() {
+            return sha256;
+        }
+
+        void setSha256(String sha256) {
+            this.sha256 = sha256;
+        }
+    }
+}
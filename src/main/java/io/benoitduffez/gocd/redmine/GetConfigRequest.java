@@ -23,20 +23,28 @@ import java.util.HashMap;
 
 // TODO: change this to allow configuration options in your configuration
 public class GetConfigRequest {
+    /**
+     * The configuration never changes: it is serialized once
+     */
+    private static final String RESPONSE_BODY = TaskPlugin.GSON.toJson(config());
 
     public GoPluginApiResponse execute() {
+        return DefaultGoPluginApiResponse.success(RESPONSE_BODY);
+    }
+
+    private static HashMap<String, Object> config() {
         HashMap<String, Object> config = new HashMap<>();
 
         HashMap<String, Object> projectId = new HashMap<>();
         projectId.put("display-order", "0");
-        projectId.put("display-name", "Project ID");
-        projectId.put("required", true);
+        projectId.put("display-name", "Projects (IDs, identifiers or names, comma separated)");
+        projectId.put("required", false);
         config.put(TaskPlugin.PROJECT_ID_PROPERTY, projectId);
 
         HashMap<String, Object> versionId = new HashMap<>();
         versionId.put("display-order", "1");
-        versionId.put("display-name", "Version ID");
-        versionId.put("required", true);
+        versionId.put("display-name", "Versions (IDs or names, comma separated)");
+        versionId.put("required", false);
         config.put(TaskPlugin.VERSION_ID_PROPERTY, versionId);
 
         HashMap<String, Object> filePath = new HashMap<>();
@@ -57,6 +65,104 @@ public class GetConfigRequest {
         appFolder.put("required", false);
         config.put(TaskPlugin.APP_FOLDER_PROPERTY, appFolder);
 
-        return DefaultGoPluginApiResponse.success(TaskPlugin.GSON.toJson(config));
+        HashMap<String, Object> parallelism = new HashMap<>();
+        parallelism.put("display-order", "5");
+        parallelism.put("display-name", "Parallel uploads");
+        parallelism.put("default-value", String.valueOf(TaskConfig.DEFAULT_PARALLELISM));
+        parallelism.put("required", false);
+        config.put(TaskPlugin.PARALLELISM_PROPERTY, parallelism);
+
+        HashMap<String, Object> retries = new HashMap<>();
+        retries.put("display-order", "6");
+        retries.put("display-name", "Retries");
+        retries.put("default-value", String.valueOf(TaskConfig.DEFAULT_RETRIES));
+        retries.put("required", false);
+        config.put(TaskPlugin.RETRIES_PROPERTY, retries);
+
+        HashMap<String, Object> archiveFormat = new HashMap<>();
+        archiveFormat.put("display-order", "7");
+        archiveFormat.put("display-name", "Archive format for directories (zip or tar.gz)");
+        archiveFormat.put("default-value", ArchiveWriter.ZIP);
+        archiveFormat.put("required", false);
+        config.put(TaskPlugin.ARCHIVE_FORMAT_PROPERTY, archiveFormat);
+
+        HashMap<String, Object> compressionLevel = new HashMap<>();
+        compressionLevel.put("display-order", "8");
+        compressionLevel.put("display-name", "Compression level (0-9)");
+        compressionLevel.put("required", false);
+        config.put(TaskPlugin.COMPRESSION_LEVEL_PROPERTY, compressionLevel);
+
+        HashMap<String, Object> follow = new HashMap<>();
+        follow.put("display-order", "9");
+        follow.put("display-name", "Upload files while they are being written");
+        follow.put("default-value", "false");
+        follow.put("required", false);
+        config.put(TaskPlugin.FOLLOW_PROPERTY, follow);
+
+        HashMap<String, Object> followQuietPeriod = new HashMap<>();
+        followQuietPeriod.put("display-order", "10");
+        followQuietPeriod.put("display-name", "Seconds without change after which a followed file is complete");
+        followQuietPeriod.put("default-value", String.valueOf(TaskConfig.DEFAULT_FOLLOW_QUIET_PERIOD));
+        followQuietPeriod.put("required", false);
+        config.put(TaskPlugin.FOLLOW_QUIET_PERIOD_PROPERTY, followQuietPeriod);
+
+        HashMap<String, Object> maxFileSize = new HashMap<>();
+        maxFileSize.put("display-order", "11");
+        maxFileSize.put("display-name", "Max file size in KB, larger files are split into parts");
+        maxFileSize.put("required", false);
+        config.put(TaskPlugin.MAX_FILE_SIZE_PROPERTY, maxFileSize);
+
+        HashMap<String, Object> retentionKeep = new HashMap<>();
+        retentionKeep.put("display-order", "12");
+        retentionKeep.put("display-name", "Number of files to keep, older ones are deleted");
+        retentionKeep.put("required", false);
+        config.put(TaskPlugin.RETENTION_KEEP_PROPERTY, retentionKeep);
+
+        HashMap<String, Object> retentionDays = new HashMap<>();
+        retentionDays.put("display-order", "13");
+        retentionDays.put("display-name", "Days after which files are deleted");
+        retentionDays.put("required", false);
+        config.put(TaskPlugin.RETENTION_DAYS_PROPERTY, retentionDays);
+
+        HashMap<String, Object> retentionScope = new HashMap<>();
+        retentionScope.put("display-order", "14");
+        retentionScope.put("display-name", "Files are kept per version or per template");
+        retentionScope.put("default-value", Retention.SCOPE_VERSION);
+        retentionScope.put("required", false);
+        config.put(TaskPlugin.RETENTION_SCOPE_PROPERTY, retentionScope);
+
+        HashMap<String, Object> retentionDryRun = new HashMap<>();
+        retentionDryRun.put("display-order", "15");
+        retentionDryRun.put("display-name", "Only list the files that would be deleted");
+        retentionDryRun.put("default-value", "false");
+        retentionDryRun.put("required", false);
+        config.put(TaskPlugin.RETENTION_DRY_RUN_PROPERTY, retentionDryRun);
+
+        HashMap<String, Object> logLevel = new HashMap<>();
+        logLevel.put("display-order", "16");
+        logLevel.put("display-name", "Console log level (debug, info, warn or error)");
+        logLevel.put("required", false);
+        config.put(TaskPlugin.LOG_LEVEL_PROPERTY, logLevel);
+
+        HashMap<String, Object> spool = new HashMap<>();
+        spool.put("display-order", "17");
+        spool.put("display-name", "Spool the files when Redmine is unavailable");
+        spool.put("default-value", "false");
+        spool.put("required", false);
+        config.put(TaskPlugin.SPOOL_PROPERTY, spool);
+
+        HashMap<String, Object> issueId = new HashMap<>();
+        issueId.put("display-order", "18");
+        issueId.put("display-name", "Issue to attach the files to");
+        issueId.put("required", false);
+        config.put(TaskPlugin.ISSUE_ID_PROPERTY, issueId);
+
+        HashMap<String, Object> issueNote = new HashMap<>();
+        issueNote.put("display-order", "19");
+        issueNote.put("display-name", "Note added to the issue with the files");
+        issueNote.put("required", false);
+        config.put(TaskPlugin.ISSUE_NOTE_PROPERTY, issueNote);
+
+        return config;
     }
 }
@@ -23,7 +23,13 @@ import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
 import java.util.HashMap;
 
 public class GetViewRequest {
-    public GoPluginApiResponse execute() {
+    /**
+     * The template is part of the plugin jar: it is read and serialized once
+     */
+    private static final int RESPONSE_CODE;
+    private static final String RESPONSE_BODY;
+
+    static {
         int responseCode = DefaultGoApiResponse.SUCCESS_RESPONSE_CODE;
         HashMap<String, String> view = new HashMap<>();
         view.put("displayValue", "Redmine File Upload");
@@ -35,6 +41,11 @@ public class GetViewRequest {
             view.put("exception", errorMessage);
             TaskPlugin.LOGGER.error(errorMessage, e);
         }
-        return new DefaultGoPluginApiResponse(responseCode, TaskPlugin.GSON.toJson(view));
+        RESPONSE_CODE = responseCode;
+        RESPONSE_BODY = TaskPlugin.GSON.toJson(view);
+    }
+
+    public GoPluginApiResponse execute() {
+        return new DefaultGoPluginApiResponse(RESPONSE_CODE, RESPONSE_BODY);
     }
 }
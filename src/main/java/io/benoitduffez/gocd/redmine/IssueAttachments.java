@@ -0,0 +1,297 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.benoitduffez.gocd.redmine;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Files to attach to an issue, gathered while the files of the task are published, and attached all at once by a
+ * single update of the issue: one round-trip for all the files, and one notification for the watchers of the issue.
+ * <p>
+ * Redmine upload tokens can only be used once: a file that is also linked to versions is uploaded again for the
+ * issue. When the issue is the only target, the upload of the file is used as is.
+ */
+public class IssueAttachments {
+    private final String issueId;
+    private final List<Pending> pending = new ArrayList<>();
+
+    /**
+     * @param issueId Numeric ID of the issue
+     */
+    public IssueAttachments(String issueId) {
+        this.issueId = issueId;
+    }
+
+    public String getIssueId() {
+        return issueId;
+    }
+
+    /**
+     * Check that the issue exists and can be updated, before anything is uploaded
+     *
+     * @throws IOException If the issue can't be read
+     */
+    public void check(String redmineUrl, String apiKey) throws IOException {
+        try {
+            TaskPlugin.HTTP.get(redmineUrl + "/issues/" + issueId + ".json", apiKey);
+        } catch (RedmineException e) {
+            if (e.getStatusCode() == 404) {
+                throw new RedmineException(404, "Issue #" + issueId + " not found");
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Add a file to attach to the issue
+     *
+     * @param file     Local file or directory
+     * @param fileName Name of the file in Redmine
+     * @param upload   Uploads the file, or null if it can't be attached (e.g. it is uploaded in parts)
+     * @param token    Token of an upload that is not used for anything else, or null to upload the file again
+     * @param metrics  Metrics of the file
+     */
+    public synchronized void add(File file, String fileName, Retry.Call<String> upload, String token, UploadMetrics metrics) {
+        pending.add(new Pending(file, fileName, upload, token, metrics));
+    }
+
+    /**
+     * Upload the files that need it, concurrently, and attach them to the issue with a single request
+     *
+     * @param notes       Note added to the issue with the files, or null
+     * @param description Description of the files
+     * @return The outcome of each file, by local file
+     */
+    public synchronized Map<File, Result.Detail> attach(String redmineUrl, String apiKey, String notes, String description, TaskConfig config, ConsoleLog console) {
+        String target = "issue #" + issueId;
+        Map<File, Result.Detail> outcomes = new HashMap<>();
+        if (pending.isEmpty()) {
+            return outcomes;
+        }
+
+        List<Callable<String>> uploads = new ArrayList<>();
+        for (Pending file : pending) {
+            uploads.add(() -> {
+                if (file.token != null) {
+                    return file.token;
+                }
+                if (file.upload == null) {
+                    throw new IOException(file.fileName + " is too large for Redmine, it can't be attached");
+                }
+                return file.metrics.time(UploadMetrics.UPLOAD, () -> Retry.run("Upload of " + file.fileName + " for " + target, config.getRetries(), console, file.upload));
+            });
+        }
+
+        IssueUpdate update = new IssueUpdate();
+        update.issue.notes = notes == null ? "" : notes;
+        List<Pending> uploaded = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(config.getParallelism(), uploads.size()));
+        try {
+            List<Future<String>> tokens = pool.invokeAll(uploads);
+            for (int i = 0; i < pending.size(); i++) {
+                Pending file = pending.get(i);
+                try {
+                    IssueUpdate.Upload upload = new IssueUpdate.Upload();
+                    upload.token = tokens.get(i).get();
+                    upload.filename = file.fileName;
+                    upload.description = description;
+                    update.issue.uploads.add(upload);
+                    uploaded.add(file);
+                } catch (ExecutionException e) {
+                    console.error("Couldn't upload " + file.fileName + " for " + target + ": " + e.getCause());
+                    outcomes.put(file.file, new Result.Detail(target, false, "Failed: " + e.getCause()));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (Pending file : pending) {
+                outcomes.put(file.file, new Result.Detail(target, false, "Interrupted"));
+            }
+            return outcomes;
+        } finally {
+            pool.shutdownNow();
+        }
+        if (uploaded.isEmpty()) {
+            return outcomes;
+        }
+
+        String url = redmineUrl + "/issues/" + issueId + ".json";
+        String json = TaskPlugin.GSON.toJson(update, IssueUpdate.class);
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        console.printLine("Attaching " + uploaded.size() + " file(s) to " + target);
+        console.debug("Sending " + json + " to " + url);
+        long start = System.nanoTime();
+        try {
+            update(redmineUrl, apiKey, update, body, config.getRetries(), console);
+            for (Pending file : uploaded) {
+                outcomes.put(file.file, new Result.Detail(target, true, "Attached as " + file.fileName));
+            }
+        } catch (IOException e) {
+            console.error("Couldn't attach the files to " + target + ": " + e);
+            for (Pending file : uploaded) {
+                outcomes.put(file.file, new Result.Detail(target, false, "Failed: " + e));
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        for (Pending file : uploaded) {
+            // The update is shared by the files
+            file.metrics.add(UploadMetrics.LINK, elapsed / uploaded.size());
+        }
+        return outcomes;
+    }
+
+    /**
+     * Send the update of the issue. It is not idempotent: sent twice, it adds the note twice, or fails as the tokens
+     * were used by the first one. Before it is sent again after a transient error, the issue is read to know whether
+     * the first one was applied and only its response was lost.
+     *
+     * @throws IOException If the update failed, or if it is not known whether it was applied
+     */
+    private void update(String redmineUrl, String apiKey, IssueUpdate update, byte[] body, int retries, ConsoleLog console) throws IOException {
+        String url = redmineUrl + "/issues/" + issueId + ".json";
+        for (int attempt = 0; ; attempt++) {
+            try {
+                TaskPlugin.HTTP.send(url, "PUT", apiKey, "application/json", body.length, output -> output.write(body));
+                return;
+            } catch (IOException e) {
+                if (attempt >= retries || !Retry.isTransient(e)) {
+                    throw e;
+                }
+                Boolean applied;
+                try {
+                    applied = isApplied(redmineUrl, apiKey, update);
+                } catch (IOException checkError) {
+                    console.printLine("Couldn't check whether the update of issue #" + issueId + " was applied: " + checkError);
+                    applied = null;
+                }
+                if (applied == null) {
+                    console.error("Update of issue #" + issueId + " failed (" + e + "), and it can't be sent again as it may have been applied");
+                    throw e;
+                }
+                if (applied) {
+                    console.printLine("Update of issue #" + issueId + " failed (" + e + "), but Redmine applied it");
+                    return;
+                }
+                long delay = Retry.delay(attempt);
+                console.printLine("Update of issue #" + issueId + " failed (" + e + ") and was not applied, retry " + (attempt + 1) + "/" + retries + " in " + delay + " ms");
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * A Redmine upload token is {@code <attachment id>.<digest>}: the update was applied if the issue has the
+     * attachments of its tokens
+     *
+     * @return Whether the update was applied, or null if it can't be told: a token of an unknown format, or only some
+     * of the attachments
+     * @throws IOException If the issue can't be read
+     */
+    private Boolean isApplied(String redmineUrl, String apiKey, IssueUpdate update) throws IOException {
+        IssueResponse response = TaskPlugin.HTTP.get(redmineUrl + "/issues/" + issueId + ".json?include=attachments", apiKey, IssueResponse.class);
+        if (response == null || response.issue == null) {
+            return null;
+        }
+        Set<String> attachmentIds = new HashSet<>();
+        if (response.issue.attachments != null) {
+            for (IssueResponse.Attachment attachment : response.issue.attachments) {
+                attachmentIds.add(attachment.id);
+            }
+        }
+        int attached = 0;
+        for (IssueUpdate.Upload upload : update.issue.uploads) {
+            int dot = upload.token == null ? -1 : upload.token.indexOf('.');
+            if (dot <= 0) {
+                return null;
+            }
+            if (attachmentIds.contains(upload.token.substring(0, dot))) {
+                attached++;
+            }
+        }
+        if (attached == 0) {
+            return false;
+        }
+        return attached == update.issue.uploads.size() ? Boolean.TRUE : null;
+    }
+
+    private static class Pending {
+        final File file;
+        final String fileName;
+        final Retry.Call<String> upload;
+        final String token;
+        final UploadMetrics metrics;
+
+        Pending(File file, String fileName, Retry.Call<String> upload, String token, UploadMetrics metrics) {
+            this.file = file;
+            this.fileName = fileName;
+            this.upload = upload;
+            this.token = token;
+            this.metrics = metrics;
+        }
+    }
+
+    /**
+     * Redmine response for an issue with its attachments: {"issue":{"id":1,"attachments":[{"id":12,...}],...}}
+     */
+    static class IssueResponse {
+        Issue issue;
+
+        static class Issue {
+            List<Attachment> attachments;
+        }
+
+        static class Attachment {
+            String id;
+        }
+    }
+
+    /**
+     * Body of {@code PUT /issues/:id.json}
+     */
+    static class IssueUpdate {
+        Issue issue = new Issue();
+
+        static class Issue {
+            String notes;
+            List<Upload> uploads = new ArrayList<>();
+        }
+
+        static class Upload {
+            String token;
+            String filename;
+            String description;
+        }
+    }
+}
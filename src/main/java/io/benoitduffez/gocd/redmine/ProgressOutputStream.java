@@ -0,0 +1,100 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.benoitduffez.gocd.redmine;
+
+import com.thoughtworks.go.plugin.api.task.JobConsoleLogger;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts the bytes of an upload, and prints the progress, rate and ETA every few seconds
+ */
+public class ProgressOutputStream extends FilterOutputStream {
+    private static final long PRINT_INTERVAL_NS = TimeUnit.SECONDS.toNanos(10);
+
+    private final JobConsoleLogger console;
+    private final String name;
+    private final long total;
+    private final long start = System.nanoTime();
+    private long lastPrint = start;
+    private long count;
+
+    /**
+     * @param output  Request body
+     * @param console Logging console
+     * @param name    Name of the upload, for the logs
+     * @param total   Size of the upload, or -1 if unknown
+     */
+    public ProgressOutputStream(OutputStream output, JobConsoleLogger console, String name, long total) {
+        super(output);
+        this.console = console;
+        this.name = name;
+        this.total = total;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        sent(1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        sent(len);
+    }
+
+    private void sent(int bytes) {
+        count += bytes;
+        long now = System.nanoTime();
+        if (now - lastPrint >= PRINT_INTERVAL_NS) {
+            lastPrint = now;
+            console.printLine(progress(now));
+        }
+    }
+
+    private String progress(long now) {
+        long elapsed = Math.max(1, now - start);
+        long rate = count * TimeUnit.SECONDS.toNanos(1) / elapsed;
+        StringBuilder line = new StringBuilder(name).append(": ").append(UploadMetrics.formatBytes(count));
+        if (total > 0) {
+            line.append(" / ").append(UploadMetrics.formatBytes(total)).append(" (").append(count * 100 / total).append("%)");
+        }
+        line.append(" at ").append(UploadMetrics.formatBytes(rate)).append("/s");
+        if (total > 0 && rate > 0) {
+            line.append(", ETA ").append((total - count) / rate).append(" s");
+        }
+        return line.toString();
+    }
+
+    /**
+     * @return Number of bytes written so far
+     */
+    public long getByteCount() {
+        return count;
+    }
+
+    /**
+     * @return Time since the stream was created
+     */
+    public long getElapsedNanos() {
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.benoitduffez.gocd.redmine;
+
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import org.apache.commons.io.IOUtils;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Default {@link Transport}: HTTP client shared by all the executions of the plugin JVM.
+ * <p>
+ * It relies on the keep-alive cache of {@link HttpURLConnection}: the connections to a Redmine host are reused as long
+ * as every response is fully read and closed, which this client always does, even for error responses. The cache is
+ * shared by everything running in the JVM, so its settings are left to the agent: {@code -Dhttp.maxConnections} (5 idle
+ * connections per host by default) and, on Java 19 and later only, {@code -Dhttp.keepAlive.time.server}. Older JVMs
+ * keep an idle connection for the time the server gives in its {@code Keep-Alive} header, or 5 seconds. All HTTPS
+ * connections use the same {@link SSLSocketFactory}, which is required to reuse them, and which lets new connections
+ * resume the TLS sessions of previous ones instead of doing a full handshake.
+ * <p>
+ * The connect and read timeouts are those of {@link HttpURLConnection}. The total timeout is enforced by a watchdog
+ * thread, which closes the connection of a request that takes too long.
+ */
+public class RedmineHttpClient implements Transport {
+    private static final int TLS_SESSION_CACHE_SIZE = 100;
+    private static final int TLS_SESSION_TIMEOUT_SECONDS = 3600;
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Responses of the Redmine API are small, a larger one is a mistake (wrong URL, proxy page...) and is not read
+     */
+    static final long MAX_RESPONSE_SIZE = 16 * 1024 * 1024;
+
+    private static final ScheduledThreadPoolExecutor WATCHDOG = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "redmine-http-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        // Almost all the requests end in time: don't keep their cancelled deadlines until they expire
+        WATCHDOG.setRemoveOnCancelPolicy(true);
+    }
+
+    private final SSLSocketFactory sslSocketFactory;
+    private final Timeouts timeouts;
+
+    /**
+     * @param timeouts Timeouts of the requests
+     */
+    public RedmineHttpClient(Timeouts timeouts) {
+        this.timeouts = timeouts;
+
+        SSLSocketFactory factory;
+        try {
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, null, null);
+            sslContext.getClientSessionContext().setSessionCacheSize(TLS_SESSION_CACHE_SIZE);
+            sslContext.getClientSessionContext().setSessionTimeout(TLS_SESSION_TIMEOUT_SECONDS);
+            factory = sslContext.getSocketFactory();
+        } catch (GeneralSecurityException e) {
+            TaskPlugin.LOGGER.warn("Couldn't create the TLS context, using the default one", e);
+            factory = HttpsURLConnection.getDefaultSSLSocketFactory();
+        }
+        sslSocketFactory = factory;
+    }
+
+    /**
+     * Create a client with the {@link Timeouts#fromEnvironment() timeouts} of the agent
+     */
+    public static RedmineHttpClient fromEnvironment() {
+        return new RedmineHttpClient(Timeouts.fromEnvironment());
+    }
+
+    @Override
+    public void warmUp() {
+        try {
+            new URL("https://localhost/").openConnection();
+            try (Socket socket = sslSocketFactory.createSocket()) {
+                ((SSLSocket) socket).getSupportedCipherSuites();
+            }
+        } catch (IOException | RuntimeException e) {
+            TaskPlugin.LOGGER.warn("Couldn't warm up the HTTP client: " + e);
+        }
+    }
+
+    @Override
+    public String get(String url, String apiKey) throws IOException {
+        return exchange(url, "GET", apiKey, null, 0, null, stream -> readFully(stream, ""));
+    }
+
+    @Override
+    public <T> T get(String url, String apiKey, Class<T> type) throws IOException {
+        return exchange(url, "GET", apiKey, null, 0, null, stream -> readJson(stream, type));
+    }
+
+    @Override
+    public String delete(String url, String apiKey) throws IOException {
+        return exchange(url, "DELETE", apiKey, null, 0, null, stream -> readFully(stream, ""));
+    }
+
+    @Override
+    public String post(String url, String apiKey, String contentType, byte[] body) throws IOException {
+        return send(url, "POST", apiKey, contentType, body.length, output -> output.write(body));
+    }
+
+    @Override
+    public String send(String url, String method, String apiKey, String contentType, long length, Body body) throws IOException {
+        return exchange(url, method, apiKey, contentType, length, body, stream -> readFully(stream, ""));
+    }
+
+    @Override
+    public <T> T send(String url, String method, String apiKey, String contentType, long length, Body body, Class<T> type) throws IOException {
+        return exchange(url, method, apiKey, contentType, length, body, stream -> readJson(stream, type));
+    }
+
+    /**
+     * Reads and closes a response body
+     */
+    private interface ResponseReader<T> {
+        T read(InputStream stream) throws IOException;
+    }
+
+    /**
+     * Send a request and read its response within the total timeout
+     *
+     * @param body   Request body, or null for a request without a body
+     * @param reader Reads the response body
+     * @return The response
+     * @throws IOException      In case of network error or timeout
+     * @throws RedmineException If the response status is not a success
+     */
+    private <T> T exchange(String url, String method, String apiKey, String contentType, long length, Body body, ResponseReader<T> reader) throws IOException {
+        HttpURLConnection connection = open(url, method, apiKey);
+        AtomicBoolean expired = new AtomicBoolean();
+        ScheduledFuture<?> deadline = null;
+        if (timeouts.getTotalMs() > 0) {
+            deadline = WATCHDOG.schedule(() -> {
+                expired.set(true);
+                // Makes the blocked read or write of the request thread fail
+                connection.disconnect();
+            }, timeouts.getTotalMs(), TimeUnit.MILLISECONDS);
+        }
+
+        try {
+            if (body != null) {
+                write(connection, contentType, length, body);
+            }
+            return reader.read(responseStream(connection));
+        } catch (IOException e) {
+            if (expired.get()) {
+                SocketTimeoutException timeout = new SocketTimeoutException(method + " " + url + " took more than " + TimeUnit.MILLISECONDS.toSeconds(timeouts.getTotalMs()) + " s");
+                timeout.initCause(e);
+                throw timeout;
+            }
+            throw e;
+        } finally {
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
+        }
+    }
+
+    private void write(HttpURLConnection connection, String contentType, long length, Body body) throws IOException {
+        connection.setDoOutput(true);
+        // Without a streaming mode, HttpURLConnection keeps the whole body in memory to compute its length
+        if (length >= 0) {
+            connection.setFixedLengthStreamingMode(length);
+        } else {
+            connection.setChunkedStreamingMode(CHUNK_SIZE);
+        }
+        connection.setRequestProperty("Content-Type", contentType);
+
+        try (OutputStream output = connection.getOutputStream()) {
+            body.writeTo(output);
+        } catch (IOException e) {
+            // The connection is in an unknown state, don't let it go back to the pool
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    private HttpURLConnection open(String url, String method, String apiKey) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        if (connection instanceof HttpsURLConnection) {
+            ((HttpsURLConnection) connection).setSSLSocketFactory(sslSocketFactory);
+        }
+        connection.setRequestMethod(method);
+        connection.setUseCaches(false);
+        connection.setConnectTimeout((int) Math.min(Integer.MAX_VALUE, timeouts.getConnectMs()));
+        connection.setReadTimeout((int) Math.min(Integer.MAX_VALUE, timeouts.getReadMs()));
+        connection.setRequestProperty("Accept", "application/json");
+        if (apiKey != null) {
+            connection.setRequestProperty("X-Redmine-API-Key", apiKey);
+        }
+        return connection;
+    }
+
+    /**
+     * The response stream must be read until the end and closed, so that the connection goes back to the keep-alive
+     * pool: {@link #readFully(InputStream, String)} and {@link #readJson(InputStream, Class)} do that
+     *
+     * @param connection Connection, once the request is sent
+     * @return The response body, limited to {@link #MAX_RESPONSE_SIZE}
+     * @throws IOException      In case of network error
+     * @throws RedmineException If the response status is not a success, the error stream is then read and closed
+     */
+    private InputStream responseStream(HttpURLConnection connection) throws IOException {
+        int status;
+        try {
+            status = connection.getResponseCode();
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+
+        if (status >= 300) {
+            throw new RedmineException(status, readFully(connection.getErrorStream(), connection.getResponseMessage()));
+        }
+        return connection.getInputStream();
+    }
+
+    static String readFully(InputStream stream, String defaultValue) throws IOException {
+        if (stream == null) {
+            return defaultValue;
+        }
+        try (InputStream input = new LimitedInputStream(stream, MAX_RESPONSE_SIZE)) {
+            return IOUtils.toString(input, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Decode a JSON response as it is read, without holding its text in memory, and close it
+     *
+     * @param stream Response body
+     * @param type   Class of the response
+     * @return The decoded response, or null if it is empty
+     * @throws IOException In case of network error, or if the response is not valid JSON or too large
+     */
+    static <T> T readJson(InputStream stream, Class<T> type) throws IOException {
+        try (InputStream input = new LimitedInputStream(stream, MAX_RESPONSE_SIZE);
+             JsonReader reader = new JsonReader(new InputStreamReader(input, StandardCharsets.UTF_8))) {
+            T value = TaskPlugin.GSON.fromJson(reader, type);
+            // Anything after the JSON value must still be consumed for the connection to be reused
+            IOUtils.skip(input, Long.MAX_VALUE);
+            return value;
+        } catch (JsonIOException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getMessage(), e);
+        } catch (JsonSyntaxException e) {
+            throw new IOException("Invalid response from Redmine: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Fails instead of reading more than a given number of bytes
+     */
+    private static class LimitedInputStream extends FilterInputStream {
+        private final long limit;
+        private long count;
+
+        LimitedInputStream(InputStream input, long limit) {
+            super(input);
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0) {
+                count(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            count(skipped);
+            return skipped;
+        }
+
+        private void count(long bytes) throws IOException {
+            count += bytes;
+            if (count > limit) {
+                throw new IOException("Response from Redmine is larger than " + UploadMetrics.formatBytes(limit));
+            }
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.benoitduffez.gocd.redmine;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolves project and version names to IDs through the Redmine API, and checks the target version before anything is
+ * uploaded.
+ * <p>
+ * Name lookups are cached in the plugin JVM, for {@code REDMINE_METADATA_TTL} seconds (5 minutes by default).
+ */
+public class RedmineMetadata {
+    public static final long DEFAULT_TTL_MS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final int PROJECTS_PAGE_SIZE = 100;
+
+    private static final TtlCache<String> PROJECT_IDS = new TtlCache<>();
+    private static final TtlCache<List<Version>> VERSIONS = new TtlCache<>();
+
+    private final String redmineUrl;
+    private final String apiKey;
+    private final long ttlMs;
+
+    public RedmineMetadata(String redmineUrl, String apiKey, long ttlMs) {
+        this.redmineUrl = redmineUrl;
+        this.apiKey = apiKey;
+        this.ttlMs = ttlMs;
+    }
+
+    /**
+     * Resolve the configured projects and versions, and make sure the versions accept files. A version given by name is
+     * looked up in each project, a version given by ID only goes with its own project.
+     *
+     * @param projects Project IDs, identifiers or names
+     * @param versions Version IDs or names
+     * @return The resolved targets, without duplicates
+     * @throws IOException In case of network error, or if a project or version doesn't exist or a version is not open
+     */
+    public List<Target> resolve(List<String> projects, List<String> versions) throws IOException {
+        Set<String> projectIds = new LinkedHashSet<>();
+        for (String project : projects) {
+            projectIds.add(resolveProject(project.trim()));
+        }
+
+        Set<String> versionIds = new LinkedHashSet<>();
+        List<Target> targets = new ArrayList<>();
+        for (String version : versions) {
+            List<Target> resolved = new ArrayList<>();
+            if (isNumeric(version.trim()) && projectIds.size() > 1) {
+                Version byId = new Version();
+                byId.id = version.trim();
+                byId.name = version.trim();
+                Target target = check(null, byId, version);
+                if (!projectIds.contains(target.getProjectId())) {
+                    throw new IOException("Version " + version + " belongs to project #" + target.getProjectId() + ", which is not one of " + projects);
+                }
+                resolved.add(target);
+            } else {
+                for (String projectId : projectIds) {
+                    resolved.add(check(projectId, resolveVersion(projectId, version.trim()), version));
+                }
+            }
+            for (Target target : resolved) {
+                if (versionIds.add(target.getVersionId())) {
+                    targets.add(target);
+                }
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * Pre-flight: the cached lookups could be stale, get the current status of the version (a small request)
+     *
+     * @param projectId Project of the version, or null if it must be taken from the version
+     * @param resolved  Version found from the configuration
+     * @param version   Configured version, for the errors
+     * @return The target
+     * @throws IOException In case of network error, or if the version doesn't exist or is not open
+     */
+    private Target check(String projectId, Version resolved, String version) throws IOException {
+        VersionResponse current;
+        try {
+            current = TaskPlugin.HTTP.get(redmineUrl + "/versions/" + resolved.id + ".json", apiKey, VersionResponse.class);
+        } catch (RedmineException e) {
+            if (e.getStatusCode() == 404) {
+                if (projectId != null) {
+                    VERSIONS.remove(versionsKey(projectId));
+                }
+                throw new IOException("Version " + version + " doesn't exist" + (projectId == null ? "" : " in project #" + projectId));
+            }
+            throw e;
+        }
+        if (current == null || current.version == null) {
+            throw new IOException("Redmine didn't return version " + version);
+        }
+        if (!"open".equals(current.version.status)) {
+            throw new IOException("Version " + current.version.name + " is " + current.version.status + ", files can't be added to it");
+        }
+        String versionProjectId = current.version.project == null ? null : current.version.project.id;
+        if (projectId == null && versionProjectId == null) {
+            throw new IOException("Redmine didn't return the project of version " + version);
+        }
+        if (projectId != null && versionProjectId != null && !projectId.equals(versionProjectId)) {
+            // A version shared by another project, or a version ID from the wrong project: Redmine only adds files to
+            // the versions of the project itself
+            VERSIONS.remove(versionsKey(projectId));
+            throw new IOException("Version " + current.version.name + " belongs to project #" + versionProjectId + ", not to project #" + projectId);
+        }
+        return new Target(projectId == null ? versionProjectId : projectId, current.version.id, current.version.name);
+    }
+
+    /**
+     * @param project Project ID, identifier or name
+     * @return The numeric ID of the project
+     * @throws IOException In case of network error, or if the project doesn't exist
+     */
+    String resolveProject(String project) throws IOException {
+        if (isNumeric(project)) {
+            return project;
+        }
+
+        String key = cacheKey(project);
+        String projectId = PROJECT_IDS.get(key, ttlMs);
+        if (projectId != null) {
+            return projectId;
+        }
+
+        try {
+            ProjectResponse response = TaskPlugin.HTTP.get(redmineUrl + "/projects/" + encode(project) + ".json", apiKey, ProjectResponse.class);
+            projectId = response.project.id;
+        } catch (RedmineException e) {
+            if (e.getStatusCode() != 404) {
+                throw e;
+            }
+            projectId = findProjectByName(project);
+        }
+
+        PROJECT_IDS.put(key, projectId);
+        return projectId;
+    }
+
+    private String findProjectByName(String name) throws IOException {
+        int offset = 0;
+        while (true) {
+            String url = redmineUrl + "/projects.json?limit=" + PROJECTS_PAGE_SIZE + "&offset=" + offset;
+            ProjectList page = TaskPlugin.HTTP.get(url, apiKey, ProjectList.class);
+            if (page == null || page.projects == null || page.projects.isEmpty()) {
+                throw new IOException("Project " + name + " doesn't exist, or is not visible with this API key");
+            }
+            for (Project project : page.projects) {
+                if (name.equalsIgnoreCase(project.name)) {
+                    return project.id;
+                }
+            }
+            offset += page.projects.size();
+            if (offset >= page.totalCount) {
+                throw new IOException("Project " + name + " doesn't exist, or is not visible with this API key");
+            }
+        }
+    }
+
+    private Version resolveVersion(String projectId, String version) throws IOException {
+        if (isNumeric(version)) {
+            Version resolved = new Version();
+            resolved.id = version;
+            resolved.name = version;
+            return resolved;
+        }
+
+        String key = versionsKey(projectId);
+        List<Version> versions = VERSIONS.get(key, ttlMs);
+        if (versions == null) {
+            VersionList list = TaskPlugin.HTTP.get(redmineUrl + "/projects/" + projectId + "/versions.json", apiKey, VersionList.class);
+            versions = list == null || list.versions == null ? new ArrayList<>() : list.versions;
+            VERSIONS.put(key, versions);
+        }
+        for (Version candidate : versions) {
+            if (version.equalsIgnoreCase(candidate.name)) {
+                return candidate;
+            }
+        }
+        throw new IOException("Version " + version + " doesn't exist in project #" + projectId);
+    }
+
+    private String versionsKey(String projectId) {
+        return cacheKey(projectId);
+    }
+
+    /**
+     * @return Key of a lookup in the caches: what a project or version resolves to depends on what the API key can see
+     */
+    private String cacheKey(String value) {
+        return redmineUrl + "|" + apiKey + "|" + value;
+    }
+
+    private static boolean isNumeric(String value) {
+        return !value.isEmpty() && value.chars().allMatch(Character::isDigit);
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Redmine response for a project: {"project":{"id":1,"name":"My app","identifier":"my-app",...}}
+     */
+    static class ProjectResponse {
+        Project project;
+    }
+
+    /**
+     * Redmine response for the projects listing: {"projects":[...],"total_count":2,"offset":0,"limit":100}
+     */
+    static class ProjectList {
+        List<Project> projects;
+        int totalCount;
+    }
+
+    static class Project {
+        String id;
+        String name;
+    }
+
+    /**
+     * Redmine response for a version: {"version":{"id":1,"name":"1.0","status":"open",...}}
+     */
+    static class VersionResponse {
+        Version version;
+    }
+
+    /**
+     * Redmine response for the versions of a project: {"versions":[...],"total_count":2}
+     */
+    static class VersionList {
+        List<Version> versions;
+    }
+
+    static class Version {
+        String id;
+        String name;
+        String status;
+        Project project;
+    }
+}
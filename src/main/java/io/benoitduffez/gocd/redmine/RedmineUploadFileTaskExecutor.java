@@ -17,46 +17,87 @@
 package io.benoitduffez.gocd.redmine;
 
 import com.thoughtworks.go.plugin.api.task.JobConsoleLogger;
-import org.apache.commons.io.IOUtils;
 
 import java.io.*;
-import java.net.URL;
-import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 public class RedmineUploadFileTaskExecutor {
+    /**
+     * Placeholders that keep their value when the retention policy looks for the files produced by the File Name
+     * template: the pipeline name and the name of the local file
+     */
+    static final String RETENTION_FIXED_PLACEHOLDERS = "PF";
 
-    private String getText(InputStream is) throws IOException {
-        BufferedReader in = new BufferedReader(new InputStreamReader(is));
+    /**
+     * Substitutions that tell apart the files matched by a pattern: the name of the local file, its digest or its size
+     */
+    static final String DISTINCT_PLACEHOLDERS = "FHhS";
 
-        StringBuilder response = new StringBuilder();
-        String inputLine;
+    /**
+     * Description of the files uploaded by the plugin, see {@link #describe(Context)}: the retention only deletes
+     * files with this description
+     */
+    static final Pattern DESCRIPTION = Pattern.compile("File generated on .+ \\(go pipeline #[^)]*\\)");
 
-        while ((inputLine = in.readLine()) != null) {
-            response.append(inputLine);
-        }
+    /**
+     * Size of the buffer used to stream artifacts, it is reused by each thread for all its uploads
+     */
+    private static final int UPLOAD_BUFFER_SIZE = 64 * 1024;
 
-        in.close();
+    /**
+     * Publications of a file to a version running in the plugin JVM, with the name of the file in Redmine
+     */
+    private static final SingleFlight<String, String> PUBLICATIONS = new SingleFlight<>();
 
-        return response.toString();
-    }
+    /**
+     * A heap buffer: the request body is an {@link OutputStream}, which takes an array, so a direct buffer would only
+     * add a copy
+     */
+    private static final ThreadLocal<ByteBuffer> UPLOAD_BUFFER = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(UPLOAD_BUFFER_SIZE);
+        }
+    };
 
-    public Result execute(TaskConfig taskConfig, Context context, JobConsoleLogger console) {
-        console.printLine("start executor");
-        try {
-            return runCommand(context, taskConfig, console);
-        } catch (Exception e) {
-            console.printLine("Coudln't execute command: " + e);
-            for (StackTraceElement stackTraceElement : e.getStackTrace()) {
-                console.printLine("   at: " + stackTraceElement.toString());
+    public Result execute(TaskConfig taskConfig, Context context, JobConsoleLogger jobConsole) {
+        String level = taskConfig.getLogLevel() != null ? taskConfig.getLogLevel() : context.getEnvironmentVariables().get("REDMINE_LOG_LEVEL");
+        try (ConsoleLog console = new ConsoleLog(jobConsole, ConsoleLog.parseLevel(level))) {
+            console.addSecret(context.getEnvironmentVariables().get("REDMINE_API_KEY"));
+            console.debug("start executor");
+            try {
+                return runCommand(context, taskConfig, console);
+            } catch (Exception e) {
+                console.error("Couldn't execute command: " + e, e);
+                return new Result(false, "Failed to upload artifact to Redmine", e);
             }
-            return new Result(false, "Failed to upload artifact to Redmine", e);
         }
     }
 
@@ -69,24 +110,875 @@ public class RedmineUploadFileTaskExecutor {
      * @return Task result
      * @throws IOException In case of network error
      */
-    private Result runCommand(Context taskContext, TaskConfig taskTaskConfig, JobConsoleLogger console) throws IOException {
-        String apiKey = (String) taskContext.getEnvironmentVariables().get("REDMINE_API_KEY");
-        String redmineUrl = (String) taskContext.getEnvironmentVariables().get("REDMINE_URL");
+    private Result runCommand(Context taskContext, TaskConfig taskTaskConfig, ConsoleLog console) throws IOException {
+        long start = System.nanoTime();
+        String apiKey = taskContext.getEnvironmentVariables().get("REDMINE_API_KEY");
+        String redmineUrl = taskContext.getEnvironmentVariables().get("REDMINE_URL");
+        Spool.register(Spool.directory(taskContext), apiKey);
+        if (redmineUrl != null) {
+            try {
+                CircuitBreaker.forUrl(redmineUrl).check();
+            } catch (CircuitBreaker.OpenException e) {
+                if (taskTaskConfig.isSpool()) {
+                    return spool(e, redmineUrl, apiKey, taskContext, taskTaskConfig, console);
+                }
+                console.error(e.getMessage());
+                return new Result(false, e.getMessage());
+            }
+        }
 
-        AttachmentUpload upload = uploadFile(redmineUrl, apiKey, taskContext.getWorkingDir(), taskTaskConfig, console);
-        if (upload == null || upload.upload == null || upload.upload.token == null || upload.upload.token.trim().isEmpty()) {
-            return new Result(false, "Redmine didn't accept the file upload. Check API key, URL, artifact path...");
+        long metadataTtl = TaskConfig.parseInt(taskContext.getEnvironmentVariables().get("REDMINE_METADATA_TTL"), 0, -1);
+        RedmineMetadata metadata = new RedmineMetadata(redmineUrl, apiKey, metadataTtl < 0 ? RedmineMetadata.DEFAULT_TTL_MS : TimeUnit.SECONDS.toMillis(metadataTtl));
+        List<Target> targets = new ArrayList<>();
+        IssueAttachments issue = taskTaskConfig.getIssueId() == null ? null : new IssueAttachments(taskTaskConfig.getIssueId());
+        try {
+            if (!taskTaskConfig.getVersionIds().isEmpty()) {
+                targets = metadata.resolve(taskTaskConfig.getProjectIds(), taskTaskConfig.getVersionIds());
+            }
+            if (issue != null) {
+                issue.check(redmineUrl, apiKey);
+            }
+        } catch (IOException e) {
+            if (taskTaskConfig.isSpool() && (e instanceof CircuitBreaker.OpenException || CircuitBreaker.isServerFailure(e))) {
+                return spool(e, redmineUrl, apiKey, taskContext, taskTaskConfig, console);
+            }
+            console.error("Pre-flight check failed: " + e.getMessage());
+            return new Result(false, "Can't publish to Redmine: " + e.getMessage(), e);
+        }
+        for (Target target : targets) {
+            console.printLine("Publishing to " + target);
+        }
+        if (issue != null) {
+            console.printLine("Attaching the files to issue #" + issue.getIssueId());
+        }
+
+        long maxKbps = TaskConfig.parseInt(taskContext.getEnvironmentVariables().get("REDMINE_MAX_UPLOAD_KBPS"), 0, -1);
+        UploadThrottle.configure(redmineUrl,
+                TaskConfig.parseInt(taskContext.getEnvironmentVariables().get("REDMINE_MAX_UPLOADS"), 0, -1),
+                maxKbps < 0 ? -1 : maxKbps * 1024);
+
+        List<File> files;
+        if (taskTaskConfig.isFollow()) {
+            // The files may not exist yet: they are awaited by the upload
+            files = new ArrayList<>();
+            for (String path : taskTaskConfig.getFilePaths()) {
+                files.add(new File(taskContext.getWorkingDir(), path));
+            }
+        } else {
+            files = FileMatcher.resolve(taskContext.getWorkingDir(), taskTaskConfig.getFilePaths());
+        }
+        if (files.isEmpty()) {
+            return new Result(false, "No file matches " + taskTaskConfig.getFilePaths());
+        }
+
+        UploadJournal journal = new UploadJournal(taskContext.getWorkingDir(), redmineUrl);
+        List<Result.Detail> details;
+        try {
+            details = publishFiles(redmineUrl, apiKey, targets, issue, files, journal, taskContext, taskTaskConfig, console);
+        } finally {
+            journal.clear();
+        }
+        if (issue != null) {
+            Map<File, Result.Detail> attached = issue.attach(redmineUrl, apiKey, taskTaskConfig.getIssueNote(), describe(taskContext), taskTaskConfig, console);
+            for (int i = 0; i < files.size(); i++) {
+                Result.Detail outcome = attached.get(files.get(i));
+                if (outcome != null) {
+                    details.set(i, withOutcome(details.get(i), targets, outcome));
+                }
+            }
         }
 
-        linkUploadToVersion(redmineUrl, apiKey, upload, taskContext, taskTaskConfig, console);
+        int failures = 0;
+        int skipped = 0;
+        for (Result.Detail detail : details) {
+            if (!detail.isSuccess()) {
+                failures++;
+            } else if (detail.isSkipped()) {
+                skipped++;
+            }
+        }
 
-        String filesUrl = redmineUrl + "/projects/" + taskTaskConfig.getProjectId() + "/files";
-        String resultHtml = "<p>File uploaded to: <a href=\"" + filesUrl + "\">" + filesUrl + "</a></p>";
-        FileOutputStream fos = new FileOutputStream(new File(taskContext.getWorkingDir(), "redmine_result.html"));
-        fos.write(resultHtml.getBytes());
-        fos.close();
+        Retention retention = new Retention(taskTaskConfig.getRetentionKeep(), taskTaskConfig.getRetentionDays(), taskTaskConfig.getRetentionScope(), taskTaskConfig.isRetentionDryRun());
+        List<Result.Detail> pruned = new ArrayList<>();
+        String retentionSummary = "";
+        if (retention.isEnabled() && failures > 0) {
+            console.printLine("Retention: some files couldn't be published, no file is deleted");
+        } else if (retention.isEnabled()) {
+            try {
+                pruned = applyRetention(retention, redmineUrl, apiKey, targets, files, details, taskContext, taskTaskConfig, console);
+                int notDeleted = 0;
+                for (Result.Detail detail : pruned) {
+                    if (!detail.isSuccess()) {
+                        notDeleted++;
+                    }
+                }
+                if (retention.isDryRun()) {
+                    retentionSummary = ", " + pruned.size() + " old file(s) would be deleted";
+                } else if (!pruned.isEmpty()) {
+                    retentionSummary = ", " + (pruned.size() - notDeleted) + " old file(s) deleted" + (notDeleted > 0 ? " and " + notDeleted + " couldn't be" : "");
+                }
+            } catch (IOException e) {
+                console.printLine("Retention: couldn't list the files: " + e);
+                retentionSummary = ", old files not deleted: " + e.getMessage();
+            }
+        }
 
-        return new Result(true, "End of run command");
+        StringBuilder resultHtml = new StringBuilder();
+        Set<String> projectIds = new LinkedHashSet<>();
+        for (Target target : targets) {
+            if (projectIds.add(target.getProjectId())) {
+                String filesUrl = redmineUrl + "/projects/" + target.getProjectId() + "/files";
+                resultHtml.append("<p>Files uploaded to: <a href=\"").append(filesUrl).append("\">").append(filesUrl).append("</a></p>\n");
+            }
+        }
+        if (issue != null) {
+            String issueUrl = redmineUrl + "/issues/" + issue.getIssueId();
+            resultHtml.append("<p>Files attached to: <a href=\"").append(issueUrl).append("\">").append(issueUrl).append("</a></p>\n");
+        }
+        resultHtml.append("<ul>\n");
+        for (Result.Detail detail : details) {
+            resultHtml.append("<li>").append(detail.getName()).append(": ").append(detail.getMessage());
+            if (detail.getTargets() != null) {
+                resultHtml.append("\n<ul>\n");
+                for (Result.Detail targetDetail : detail.getTargets()) {
+                    resultHtml.append("<li>").append(targetDetail.getName()).append(": ").append(targetDetail.getMessage()).append("</li>\n");
+                }
+                resultHtml.append("</ul>\n");
+            }
+            resultHtml.append("</li>\n");
+        }
+        resultHtml.append("</ul>\n");
+        if (!pruned.isEmpty()) {
+            resultHtml.append("<p>Retention").append(retention.isDryRun() ? " (dry run)" : "").append(":</p>\n<ul>\n");
+            for (Result.Detail detail : pruned) {
+                resultHtml.append("<li>").append(detail.getName()).append(": ").append(detail.getMessage()).append("</li>\n");
+            }
+            resultHtml.append("</ul>\n");
+        }
+        try (FileOutputStream fos = new FileOutputStream(new File(taskContext.getWorkingDir(), "redmine_result.html"))) {
+            fos.write(resultHtml.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        writeMetrics(taskContext.getWorkingDir(), details, System.nanoTime() - start, console);
+
+        if (failures > 0) {
+            return new Result(false, failures + "/" + details.size() + " file(s) could not be uploaded to Redmine", details);
+        }
+        if (skipped > 0) {
+            return new Result(true, (details.size() - skipped) + " file(s) uploaded to Redmine, " + skipped + " already there" + retentionSummary, details);
+        }
+        return new Result(true, details.size() + " file(s) uploaded to Redmine" + retentionSummary, details);
+    }
+
+    /**
+     * Redmine is unavailable: copy the files to the spool, with what is needed to publish them, so that they are
+     * published in the background once Redmine is back, and let the job succeed
+     *
+     * @param unavailable Error that tells that Redmine is unavailable
+     * @return Task result
+     * @throws IOException If the files can't be listed
+     */
+    private Result spool(IOException unavailable, String redmineUrl, String apiKey, Context taskContext, TaskConfig config, ConsoleLog console) throws IOException {
+        if (config.isFollow()) {
+            console.error("Redmine is unavailable (" + unavailable.getMessage() + "), and followed files can't be spooled");
+            return new Result(false, "Can't publish to Redmine: " + unavailable.getMessage(), unavailable);
+        }
+        console.warn("Redmine is unavailable (" + unavailable.getMessage() + "), spooling the files to publish them once it is back");
+
+        List<File> files = FileMatcher.resolve(taskContext.getWorkingDir(), config.getFilePaths());
+        if (files.isEmpty()) {
+            return new Result(false, "No file matches " + config.getFilePaths());
+        }
+
+        File directory = Spool.directory(taskContext);
+        Map<String, String> environment = new HashMap<>();
+        for (Map.Entry<String, String> variable : taskContext.getEnvironmentVariables().entrySet()) {
+            // The pipeline variables, not the secrets the job may have
+            if (variable.getKey().startsWith("GO_") || variable.getKey().equals("REDMINE_LOG_LEVEL") || variable.getKey().equals("REDMINE_METADATA_TTL")) {
+                environment.put(variable.getKey(), variable.getValue());
+            }
+        }
+        environment.put(Spool.DESCRIPTION_VARIABLE, describe(taskContext));
+
+        List<Result.Detail> details = new ArrayList<>();
+        Map<String, File> names = new HashMap<>();
+        int failures = 0;
+        for (File file : files) {
+            UploadMetrics metrics = new UploadMetrics();
+            String localName = file.getName();
+            Spool.Staged staged = null;
+            try {
+                if (file.isDirectory()) {
+                    ArchiveWriter archive = new ArchiveWriter(config.getArchiveFormat(), config.getCompressionLevel());
+                    localName = archive.archiveName(file);
+                    staged = Spool.stage(directory, localName, output -> archive.write(file, output));
+                } else {
+                    staged = Spool.stage(directory, localName, output -> Files.copy(file.toPath(), output));
+                }
+                File copy = staged.getFile();
+                String sha256 = FileDigest.of(copy).getSha256();
+                String fileName = expandFileName(file, localName, copy.length(), sha256, metrics, taskContext, config, console);
+                claimName(names, file, fileName);
+
+                Map<String, String> values = new HashMap<>(config.getValues());
+                values.put(TaskPlugin.FILE_PATH_PROPERTY, localName);
+                // Already expanded: the name must not change when the file is published
+                values.put(TaskPlugin.FILE_NAME_PROPERTY, fileName.replace("%", "%%"));
+                values.remove(TaskPlugin.APP_FOLDER_PROPERTY);
+                values.remove(TaskPlugin.SPOOL_PROPERTY);
+                values.remove(TaskPlugin.RETENTION_KEEP_PROPERTY);
+                values.remove(TaskPlugin.RETENTION_DAYS_PROPERTY);
+                staged.commit(redmineUrl, apiKey, values, environment);
+                console.printLine("Spooled " + file + " as " + fileName);
+                details.add(new Result.Detail(localName, true, "Spooled as " + fileName + ", it will be published once Redmine is back"));
+            } catch (IOException | RuntimeException e) {
+                if (staged != null) {
+                    staged.discard();
+                }
+                console.error("Couldn't spool " + file + ": " + e, e);
+                details.add(new Result.Detail(localName, false, "Not spooled: " + e));
+                failures++;
+            }
+        }
+
+        if (failures > 0) {
+            return new Result(false, "Redmine is unavailable, and " + failures + "/" + files.size() + " file(s) could not be spooled", details);
+        }
+        return new Result(true, "Redmine is unavailable: " + files.size() + " file(s) spooled to " + directory + ", they will be published once it is back", details);
+    }
+
+    /**
+     * Delete the older files produced by the File Name template for the same local files, once all the files are
+     * published
+     *
+     * @return The outcome for each file deleted by the retention policy
+     * @throws IOException If the files of the projects couldn't be listed
+     */
+    private List<Result.Detail> applyRetention(Retention retention, String redmineUrl, String apiKey, List<Target> targets, List<File> files, List<Result.Detail> details, Context taskContext, TaskConfig config, ConsoleLog console) throws IOException {
+        FileNameTemplate template = FileNameTemplate.compile(config.getFileName());
+        if (!template.hasFixedText(RETENTION_FIXED_PLACEHOLDERS)) {
+            // Every file of the project would match
+            console.printLine("Retention: the File Name has no %P, %F or name besides the extension, no file is deleted");
+            return new ArrayList<>();
+        }
+
+        String pipelineName = taskContext.getEnvironmentVariables().get("GO_PIPELINE_NAME");
+        Map<String, Pattern> patterns = new LinkedHashMap<>();
+        for (File file : files) {
+            String name = file.isDirectory() && !config.isFollow() ? new ArchiveWriter(config.getArchiveFormat(), config.getCompressionLevel()).archiveName(file) : file.getName();
+            Pattern pattern = template.toPattern(new FileNameTemplate.Values() {
+                @Override
+                public String get(char placeholder) {
+                    return placeholder == 'P' ? pipelineName : placeholder == 'F' ? name : null;
+                }
+
+                @Override
+                public String env(String name) {
+                    return null;
+                }
+            }, RETENTION_FIXED_PLACEHOLDERS);
+            patterns.putIfAbsent(pattern.pattern(), pattern);
+        }
+
+        // The files of this job are the newest, but an identical file found by the duplicate check may be old
+        Set<String> protectedNames = new HashSet<>();
+        for (Result.Detail detail : details) {
+            if (detail.getRemoteNames() != null) {
+                protectedNames.addAll(detail.getRemoteNames());
+            }
+        }
+        return retention.prune(redmineUrl, apiKey, targets, new ArrayList<>(patterns.values()), protectedNames, config.getParallelism(), config.getRetries(), console);
+    }
+
+    /**
+     * Print a summary of the metrics of each file, and write them all to redmine_metrics.json
+     */
+    private void writeMetrics(String workingDir, List<Result.Detail> details, long totalNanos, ConsoleLog console) {
+        List<Map<String, Object>> files = new ArrayList<>();
+        long totalBytes = 0;
+        for (Result.Detail detail : details) {
+            UploadMetrics metrics = detail.getMetrics();
+            if (metrics == null) {
+                continue;
+            }
+            totalBytes += metrics.getBytesSent();
+            Map<String, Object> file = new LinkedHashMap<>();
+            file.put("name", detail.getName());
+            file.put("success", detail.isSuccess());
+            file.put("skipped", detail.isSkipped());
+            file.put("metrics", metrics);
+            files.add(file);
+            console.printLine(detail.getName() + ": " + metrics.summary());
+        }
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("total_ms", TimeUnit.NANOSECONDS.toMillis(totalNanos));
+        report.put("bytes_sent", totalBytes);
+        report.put("throughput_bytes_per_second", totalNanos > 0 ? totalBytes * TimeUnit.SECONDS.toNanos(1) / totalNanos : 0);
+        report.put("files", files);
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(new File(workingDir, "redmine_metrics.json")), StandardCharsets.UTF_8)) {
+            TaskPlugin.GSON.toJson(report, writer);
+        } catch (IOException e) {
+            console.printLine("Couldn't write the metrics: " + e);
+        }
+    }
+
+    /**
+     * Upload and link the files, at most {@link TaskConfig#getParallelism()} at a time
+     *
+     * @param redmineUrl  Redmine URL
+     * @param apiKey      Redmine API key
+     * @param targets     Project versions to publish to
+     * @param issue       Issue to attach the files to, or null
+     * @param files       Files to publish
+     * @param journal     Tokens of the files uploaded by a previous attempt
+     * @param taskContext Task context
+     * @param config      Config
+     * @param console     Logging console
+     * @return The outcome for each file, in the same order as the files
+     */
+    private List<Result.Detail> publishFiles(String redmineUrl, String apiKey, List<Target> targets, IssueAttachments issue, List<File> files, UploadJournal journal, Context taskContext, TaskConfig config, ConsoleLog console) {
+        int workers = Math.min(config.getParallelism(), files.size());
+        // The parts and the targets of a file share the uploads of the job: at most "Parallel uploads" requests at a time
+        int fileParallelism = Math.max(1, config.getParallelism() / workers);
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        Map<String, File> names = new ConcurrentHashMap<>();
+        try {
+            List<Future<Result.Detail>> futures = new ArrayList<>();
+            for (File file : files) {
+                futures.add(pool.submit(() -> {
+                    UploadMetrics metrics = new UploadMetrics();
+                    Result.Detail detail = publishFile(redmineUrl, apiKey, targets, issue, file, names, fileParallelism, journal, metrics, taskContext, config, console);
+                    detail.setMetrics(metrics);
+                    return detail;
+                }));
+            }
+
+            List<Result.Detail> details = new ArrayList<>();
+            for (int i = 0; i < files.size(); i++) {
+                try {
+                    details.add(futures.get(i).get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    details.add(new Result.Detail(files.get(i).getName(), false, "Interrupted"));
+                } catch (ExecutionException e) {
+                    details.add(new Result.Detail(files.get(i).getName(), false, "Failed: " + e.getCause()));
+                }
+            }
+            return details;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Upload one file and link it to the versions. If a previous attempt already uploaded this file, its token is
+     * reused so that only the link step runs again. Upload tokens can only be used once: the file is uploaded for each
+     * version that doesn't have it yet, and not at all to the versions another job of the agent is publishing it to at
+     * the same time.
+     * The file is added to the issue, if any, to be attached with the other files once they are all published.
+     *
+     * @return The outcome for this file
+     */
+    private Result.Detail publishFile(String redmineUrl, String apiKey, List<Target> targets, IssueAttachments issue, File file, Map<String, File> names, int fileParallelism, UploadJournal journal, UploadMetrics metrics, Context taskContext, TaskConfig config, ConsoleLog console) {
+        if (config.isFollow()) {
+            return publishFollowedFile(redmineUrl, apiKey, targets, issue, file, names, fileParallelism, metrics, taskContext, config, console);
+        }
+        if (file.isDirectory()) {
+            return publishDirectory(redmineUrl, apiKey, targets, issue, file, names, fileParallelism, metrics, taskContext, config, console);
+        }
+
+        try {
+            FileDigest digest = metrics.time(UploadMetrics.DIGEST, () -> FileDigest.of(file));
+            String fileName = metrics.time(UploadMetrics.TEMPLATE, () -> expandFileName(file, file.getName(), file.length(), digest.getSha256(), metrics, taskContext, config, console));
+            claimName(names, file, fileName);
+            if (issue != null) {
+                // An issue can't hold a file uploaded in parts
+                long maxFileSize = FileParts.getMaxFileSize(redmineUrl, config.getMaxFileSize());
+                boolean fits = maxFileSize <= 0 || file.length() <= maxFileSize;
+                issue.add(file, fileName, fits ? () -> uploadFile(redmineUrl, apiKey, file, metrics, console) : null, null, metrics);
+            }
+
+            Result.Detail[] outcomes = new Result.Detail[targets.size()];
+            List<Target> pending = new ArrayList<>();
+            for (int i = 0; i < targets.size(); i++) {
+                Target target = targets.get(i);
+                String existing = metrics.time(UploadMetrics.DUPLICATE_CHECK, () -> findIdentical(redmineUrl, apiKey, target, digest, console));
+                if (existing != null) {
+                    console.printLine(file + " is already in " + target + " as " + existing + " (SHA-256 " + digest.getSha256() + "), skipping upload");
+                    outcomes[i] = Result.Detail.skipped(target.toString(), "Identical file already in Redmine as " + existing + ", not uploaded");
+                    outcomes[i].setRemoteNames(Collections.singletonList(existing));
+                } else {
+                    pending.add(target);
+                }
+            }
+            List<String> remoteNames = new ArrayList<>();
+            for (Result.Detail outcome : outcomes) {
+                if (outcome != null) {
+                    remoteNames.add(outcome.getRemoteNames().get(0));
+                }
+            }
+            if (pending.isEmpty()) {
+                Result.Detail detail = Result.Detail.combine(file.getName(), Arrays.asList(outcomes));
+                detail.setRemoteNames(remoteNames);
+                return detail;
+            }
+            remoteNames.add(fileName);
+
+            // Another job of this agent may be publishing the same file to the same version right now: wait for it
+            // instead of sending another copy, and only publish the file if that job fails to
+            while (!pending.isEmpty()) {
+                List<Target> led = new ArrayList<>();
+                List<SingleFlight<String, String>.Flight> leading = new ArrayList<>();
+                Map<Target, SingleFlight<String, String>.Flight> followed = new LinkedHashMap<>();
+                for (Target target : pending) {
+                    SingleFlight<String, String>.Flight flight = PUBLICATIONS.join(redmineUrl + "|" + target.getProjectId() + "|" + target.getVersionId()
+                            + "|" + file.getCanonicalPath() + "|" + file.length() + "|" + file.lastModified());
+                    if (flight.isLeader()) {
+                        led.add(target);
+                        leading.add(flight);
+                    } else {
+                        followed.put(target, flight);
+                    }
+                }
+
+                if (!led.isEmpty()) {
+                    List<Result.Detail> published;
+                    try {
+                        published = uploadAndLink(redmineUrl, apiKey, led, file, fileName, digest, fileParallelism, journal, metrics, taskContext, config, console);
+                    } catch (Throwable e) {
+                        // Errors too, otherwise the other jobs would wait forever
+                        for (SingleFlight<String, String>.Flight flight : leading) {
+                            flight.fail(e);
+                        }
+                        throw e;
+                    }
+                    for (int i = 0; i < led.size(); i++) {
+                        Result.Detail outcome = published.get(i);
+                        if (outcome.isSuccess()) {
+                            leading.get(i).complete(fileName);
+                        } else {
+                            leading.get(i).fail(new IOException(outcome.getMessage()));
+                        }
+                        outcomes[targets.indexOf(led.get(i))] = outcome;
+                    }
+                }
+
+                pending = new ArrayList<>();
+                for (Map.Entry<Target, SingleFlight<String, String>.Flight> entry : followed.entrySet()) {
+                    Target target = entry.getKey();
+                    console.printLine(file + " is being published to " + target + " by another job, waiting for it");
+                    try {
+                        String published = entry.getValue().await();
+                        outcomes[targets.indexOf(target)] = Result.Detail.skipped(target.toString(), "Published by another job as " + published + ", not uploaded again");
+                        remoteNames.add(published);
+                    } catch (InterruptedIOException e) {
+                        throw e;
+                    } catch (IOException e) {
+                        console.printLine("The other job couldn't publish " + file + " to " + target + " (" + e.getMessage() + "), publishing it");
+                        pending.add(target);
+                    }
+                }
+            }
+
+            Result.Detail detail = Result.Detail.combine(file.getName(), Arrays.asList(outcomes));
+            detail.setRemoteNames(remoteNames);
+            return detail;
+        } catch (Exception e) {
+            console.error("Couldn't upload " + file + ": " + e, e);
+            return new Result.Detail(file.getName(), false, "Failed: " + e);
+        }
+    }
+
+    /**
+     * Upload one file, in parts if it is too large for Redmine, and link it to the versions
+     *
+     * @param targets         Project versions that don't have the file yet
+     * @param fileName        Name of the file in Redmine
+     * @param fileParallelism Number of parts, or of targets, to upload to at the same time
+     * @return The outcome for each target, in the same order as the targets
+     * @throws Exception If the file couldn't be uploaded
+     */
+    private List<Result.Detail> uploadAndLink(String redmineUrl, String apiKey, List<Target> targets, File file, String fileName, FileDigest digest, int fileParallelism, UploadJournal journal, UploadMetrics metrics, Context taskContext, TaskConfig config, ConsoleLog console) throws Exception {
+        int retries = config.getRetries();
+        long maxFileSize = FileParts.getMaxFileSize(redmineUrl, config.getMaxFileSize());
+        long partSize = maxFileSize > 0 && file.length() > maxFileSize ? maxFileSize : 0;
+        Retry.Call<String> upload = () -> {
+            String uploadToken = uploadFile(redmineUrl, apiKey, file, metrics, console);
+            journal.put(file, uploadToken);
+            return uploadToken;
+        };
+
+        String token = null;
+        if (partSize == 0) {
+            token = journal.getToken(file);
+            if (token != null) {
+                // Redmine may have pruned the previous upload already: the link step then uploads the file again
+                console.printLine("Reusing the token of the previous upload of " + file);
+            } else {
+                try {
+                    token = metrics.time(UploadMetrics.UPLOAD, () -> Retry.run("Upload of " + file.getName(), retries, console, upload));
+                } catch (RedmineException e) {
+                    long detectedMaxFileSize = FileParts.detectMaxFileSize(redmineUrl, e);
+                    if (detectedMaxFileSize <= 0 || file.length() <= detectedMaxFileSize) {
+                        throw e;
+                    }
+                    console.printLine("Redmine accepts files up to " + UploadMetrics.formatBytes(detectedMaxFileSize) + ", uploading " + file + " in parts");
+                    partSize = detectedMaxFileSize;
+                }
+            }
+        }
+
+        List<Exception> errors;
+        String message;
+        if (partSize > 0) {
+            errors = publishParts(redmineUrl, apiKey, targets, file, fileName, digest, partSize, fileParallelism, metrics, taskContext, config, console);
+            message = "Uploaded in parts as " + fileName + ", see " + fileName + FileParts.MANIFEST_SUFFIX;
+        } else {
+            // Only the first token is journaled: the uploads for the other targets are linked right away
+            Retry.Call<String> reupload = () -> uploadFile(redmineUrl, apiKey, file, metrics, console);
+            errors = linkToTargets(redmineUrl, apiKey, targets, token, fileName, reupload, fileParallelism, metrics, taskContext, config, console);
+            message = "Uploaded as " + fileName;
+        }
+
+        List<Result.Detail> outcomes = new ArrayList<>();
+        boolean linked = true;
+        for (int i = 0; i < targets.size(); i++) {
+            Target target = targets.get(i);
+            Exception error = errors.get(i);
+            if (error == null) {
+                RemoteFiles.added(redmineUrl, apiKey, target.getProjectId(), target.getVersionId(), fileName, digest);
+                outcomes.add(new Result.Detail(target.toString(), true, message));
+            } else {
+                linked = false;
+                outcomes.add(new Result.Detail(target.toString(), false, "Failed: " + error));
+            }
+        }
+        if (linked) {
+            journal.remove(file);
+        }
+        return outcomes;
+    }
+
+    /**
+     * Link a file to each target, up to {@code parallelism} targets at the same time. Redmine tokens can only be used
+     * once: the upload is linked to the first target, and the file is uploaded again for each other target, while the
+     * first one is linked. The same token is never sent in two requests.
+     *
+     * @param targets     Project versions to link the file to
+     * @param token       Token of the upload
+     * @param fileName    Name of the file in Redmine
+     * @param upload      Uploads the file again, for the other targets: it may run in several threads at once
+     * @param parallelism Number of targets to publish to at the same time: they are published by the calling thread,
+     *                    one after the other, when it is 1
+     * @return The error for each target, null for the targets the file was linked to, in the same order as the targets
+     */
+    private List<Exception> linkToTargets(String redmineUrl, String apiKey, List<Target> targets, String token, String fileName, Retry.Call<String> upload, int parallelism, UploadMetrics metrics, Context taskContext, TaskConfig config, ConsoleLog console) {
+        List<Exception> errors = new ArrayList<>();
+        if (parallelism <= 1 || targets.size() <= 1) {
+            for (int i = 0; i < targets.size(); i++) {
+                errors.add(linkToTarget(redmineUrl, apiKey, targets.get(i), i == 0 ? token : null, fileName, upload, metrics, taskContext, config, console));
+            }
+            return errors;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(parallelism, targets.size()));
+        try {
+            List<Future<Exception>> futures = new ArrayList<>();
+            for (int i = 0; i < targets.size(); i++) {
+                Target target = targets.get(i);
+                String targetToken = i == 0 ? token : null;
+                futures.add(pool.submit(() -> linkToTarget(redmineUrl, apiKey, target, targetToken, fileName, upload, metrics, taskContext, config, console)));
+            }
+            for (Future<Exception> future : futures) {
+                try {
+                    errors.add(future.get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    errors.add(new InterruptedIOException("Interrupted while linking " + fileName));
+                } catch (ExecutionException e) {
+                    errors.add(e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+                }
+            }
+            return errors;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Link an upload to a target. When Redmine rejects the token, because it was pruned or already used by a previous
+     * run, the file is uploaded again for that target.
+     *
+     * @param target Project version to link the file to
+     * @param token  Token of an upload that is not linked to anything yet, or null to upload the file for this target
+     * @param upload Uploads the file again
+     * @return The error of the target, or null once the file is linked to it
+     */
+    private Exception linkToTarget(String redmineUrl, String apiKey, Target target, String token, String fileName, Retry.Call<String> upload, UploadMetrics metrics, Context taskContext, TaskConfig config, ConsoleLog console) {
+        int retries = config.getRetries();
+        try {
+            if (token == null) {
+                console.printLine("Uploading " + fileName + " again for " + target + ", as upload tokens can only be used once");
+                token = metrics.time(UploadMetrics.UPLOAD, () -> Retry.run("Upload of " + fileName, retries, console, upload));
+            }
+            String linkToken = token;
+            try {
+                metrics.time(UploadMetrics.LINK, () -> Retry.run("Link of " + fileName + " to " + target, retries, console, () -> linkUploadToVersion(redmineUrl, apiKey, target, linkToken, fileName, taskContext, console)));
+            } catch (RedmineException e) {
+                if (e.isTransient() || (e.getStatusCode() != 400 && e.getStatusCode() != 422)) {
+                    throw e;
+                }
+                console.printLine("Redmine rejected the upload token for " + target + " (" + e.getMessage() + "), uploading again");
+                String newToken = metrics.time(UploadMetrics.UPLOAD, () -> Retry.run("Upload of " + fileName, retries, console, upload));
+                metrics.time(UploadMetrics.LINK, () -> Retry.run("Link of " + fileName + " to " + target, retries, console, () -> linkUploadToVersion(redmineUrl, apiKey, target, newToken, fileName, taskContext, console)));
+            }
+            return null;
+        } catch (Exception e) {
+            console.error("Couldn't link " + fileName + " to " + target + ": " + e);
+            return e;
+        }
+    }
+
+    /**
+     * Upload a file that is too large for Redmine as parts, read straight from the file and uploaded concurrently, and
+     * link them to the versions with a manifest to check and reassemble them. Each part is linked to the versions one
+     * after the other, by the thread that uploaded it.
+     *
+     * @param fileName    Name of the file in Redmine, the parts and the manifest are named after it
+     * @param digest      Digest of the whole file
+     * @param maxPartSize Maximum size of a part
+     * @param parallelism Number of parts to upload at the same time: the parts are uploaded by the calling thread
+     *                    when it is 1
+     * @return The error for each target, null for the targets the parts were linked to
+     * @throws Exception If a part or the manifest couldn't be uploaded
+     */
+    private List<Exception> publishParts(String redmineUrl, String apiKey, List<Target> targets, File file, String fileName, FileDigest digest, long maxPartSize, int parallelism, UploadMetrics metrics, Context taskContext, TaskConfig config, ConsoleLog console) throws Exception {
+        int retries = config.getRetries();
+        List<FileParts.Part> parts = FileParts.split(fileName, file.length(), maxPartSize);
+        Exception[] errors = new Exception[targets.size()];
+        console.printLine("Uploading " + file + " as " + parts.size() + " parts of at most " + UploadMetrics.formatBytes(maxPartSize));
+
+        List<Callable<List<Exception>>> tasks = new ArrayList<>();
+        for (FileParts.Part part : parts) {
+            tasks.add(() -> {
+                Retry.Call<String> upload = () -> uploadPart(redmineUrl, apiKey, file, part, metrics, console);
+                String token = metrics.time(UploadMetrics.UPLOAD, () -> Retry.run("Upload of " + part.getName(), retries, console, upload));
+                // The parts already share the uploads of the file
+                return linkToTargets(redmineUrl, apiKey, targets, token, part.getName(), upload, 1, metrics, taskContext, config, console);
+            });
+        }
+        if (parallelism <= 1) {
+            for (Callable<List<Exception>> task : tasks) {
+                firstErrors(errors, task.call());
+            }
+        } else {
+            ExecutorService pool = Executors.newFixedThreadPool(Math.min(parallelism, parts.size()));
+            try {
+                List<Future<List<Exception>>> futures = new ArrayList<>();
+                for (Callable<List<Exception>> task : tasks) {
+                    futures.add(pool.submit(task));
+                }
+                for (Future<List<Exception>> future : futures) {
+                    try {
+                        firstErrors(errors, future.get());
+                    } catch (ExecutionException e) {
+                        throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    }
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+
+        String manifestName = fileName + FileParts.MANIFEST_SUFFIX;
+        byte[] manifest = FileParts.manifest(fileName, file.length(), digest.getSha256(), parts).getBytes(StandardCharsets.UTF_8);
+        String url = redmineUrl + "/uploads.json";
+        Retry.Call<String> upload = () -> upload(url, apiKey, manifest.length, output -> output.write(manifest), console);
+        String token = metrics.time(UploadMetrics.UPLOAD, () -> Retry.run("Upload of " + manifestName, retries, console, upload));
+        firstErrors(errors, linkToTargets(redmineUrl, apiKey, targets, token, manifestName, upload, parallelism, metrics, taskContext, config, console));
+        console.printLine("Uploaded " + file + " as " + parts.size() + " parts of " + fileName + ", see " + manifestName);
+        return Arrays.asList(errors);
+    }
+
+    /**
+     * Keep the first error of each target
+     */
+    private static void firstErrors(Exception[] errors, List<Exception> newErrors) {
+        for (int i = 0; i < errors.length; i++) {
+            if (errors[i] == null) {
+                errors[i] = newErrors.get(i);
+            }
+        }
+    }
+
+    /**
+     * Upload a range of a file
+     *
+     * @return Redmine attachment token
+     * @throws IOException In case of network error, or if Redmine didn't accept the part
+     */
+    private String uploadPart(String redmineUrl, String apiKey, File file, FileParts.Part part, UploadMetrics metrics, ConsoleLog console) throws IOException {
+        String url = redmineUrl + "/uploads.json";
+        console.printLine("Uploading " + part.getName() + " (bytes " + part.getOffset() + " to " + (part.getOffset() + part.getLength() - 1) + " of " + file + ")");
+
+        MessageDigest sha256 = FileDigest.newDigest("SHA-256");
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ProgressOutputStream[] sent = new ProgressOutputStream[1];
+            String token = upload(url, apiKey, part.getLength(), output -> {
+                sent[0] = new ProgressOutputStream(new DigestOutputStream(output, sha256), console, part.getName(), part.getLength());
+                streamRange(channel, part.getOffset(), part.getLength(), sent[0]);
+            }, console);
+            metrics.uploaded(sent[0].getByteCount(), sent[0].getElapsedNanos());
+            part.setSha256(FileDigest.toHex(sha256.digest()));
+            return token;
+        }
+    }
+
+    /**
+     * Upload a directory as an archive, built on the fly while it is sent, and link it to the versions. As the archive is
+     * not known before it is sent, there is no duplicate check and no resume.
+     *
+     * @return The outcome for this directory
+     */
+    private Result.Detail publishDirectory(String redmineUrl, String apiKey, List<Target> targets, IssueAttachments issue, File directory, Map<String, File> names, int parallelism, UploadMetrics metrics, Context taskContext, TaskConfig config, ConsoleLog console) {
+        ArchiveWriter archive = new ArchiveWriter(config.getArchiveFormat(), config.getCompressionLevel());
+        String archiveName = archive.archiveName(directory);
+        int retries = config.getRetries();
+        try {
+            // Size and SHA-256 of the last upload: the name of the archive is computed from the first one, before the
+            // uploads for the other targets run, possibly in several threads
+            long[] size = new long[1];
+            String[] sha256 = new String[1];
+            String url = redmineUrl + "/uploads.json";
+            Retry.Call<String> upload = () -> {
+                console.printLine("Uploading " + directory + " as " + archiveName + " to " + url);
+                MessageDigest digest = FileDigest.newDigest("SHA-256");
+                ProgressOutputStream[] sent = new ProgressOutputStream[1];
+                String uploadToken = upload(url, apiKey, -1, output -> {
+                    sent[0] = new ProgressOutputStream(new DigestOutputStream(output, digest), console, archiveName, -1);
+                    archive.write(directory, sent[0]);
+                    sent[0].flush();
+                }, console);
+                metrics.uploaded(sent[0].getByteCount(), sent[0].getElapsedNanos());
+                size[0] = sent[0].getByteCount();
+                sha256[0] = FileDigest.toHex(digest.digest());
+                return uploadToken;
+            };
+            String token = metrics.time(UploadMetrics.UPLOAD, () -> Retry.run("Upload of " + archiveName, retries, console, upload));
+            long archiveSize = size[0];
+
+            String fileName = metrics.time(UploadMetrics.TEMPLATE, () -> expandFileName(directory, archiveName, archiveSize, sha256[0], metrics, taskContext, config, console));
+            claimName(names, directory, fileName);
+            if (issue != null) {
+                issue.add(directory, fileName, upload, targets.isEmpty() ? token : null, metrics);
+            }
+            List<Exception> errors = linkToTargets(redmineUrl, apiKey, targets, token, fileName, upload, parallelism, metrics, taskContext, config, console);
+            Result.Detail detail = Result.Detail.combine(archiveName, outcomes(targets, errors, "Uploaded as " + fileName + " (" + archiveSize + " bytes)"));
+            detail.setRemoteNames(Collections.singletonList(fileName));
+            return detail;
+        } catch (Exception e) {
+            console.error("Couldn't upload " + directory + ": " + e, e);
+            return new Result.Detail(archiveName, false, "Failed: " + e);
+        }
+    }
+
+    /**
+     * Look for a file with the same content in the target version. Failing to list the files is not an error: the
+     * file is uploaded anyway.
+     *
+     * @return The name of the identical file in Redmine, or null
+     */
+    private String findIdentical(String redmineUrl, String apiKey, Target target, FileDigest digest, ConsoleLog console) {
+        try {
+            return RemoteFiles.findIdentical(redmineUrl, apiKey, target.getProjectId(), target.getVersionId(), digest);
+        } catch (IOException e) {
+            console.printLine("Couldn't list the files of the project, can't check for duplicates: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Upload a file while it is being written, and link it to the versions once it is complete. The name is computed
+     * after the upload, when the size and digest are known.
+     *
+     * @return The outcome for this file
+     */
+    private Result.Detail publishFollowedFile(String redmineUrl, String apiKey, List<Target> targets, IssueAttachments issue, File file, Map<String, File> names, int parallelism, UploadMetrics metrics, Context taskContext, TaskConfig config, ConsoleLog console) {
+        int retries = config.getRetries();
+        long quietPeriodMs = TimeUnit.SECONDS.toMillis(config.getFollowQuietPeriod());
+        try {
+            // Size and SHA-256 of the last upload: the name of the file is computed from the first one, before the
+            // uploads for the other targets run, possibly in several threads
+            long[] size = new long[1];
+            String[] sha256 = new String[1];
+            String url = redmineUrl + "/uploads.json";
+            Retry.Call<String> upload = () -> {
+                console.printLine("Following " + file + " and uploading it to " + url);
+                MessageDigest digest = FileDigest.newDigest("SHA-256");
+                ProgressOutputStream[] sent = new ProgressOutputStream[1];
+                String uploadToken = upload(url, apiKey, -1, output -> {
+                    sent[0] = new ProgressOutputStream(new DigestOutputStream(output, digest), console, file.getName(), -1);
+                    new FileFollower(file, quietPeriodMs, console).copyTo(sent[0]);
+                    sent[0].flush();
+                }, console);
+                metrics.uploaded(sent[0].getByteCount(), sent[0].getElapsedNanos());
+                size[0] = sent[0].getByteCount();
+                sha256[0] = FileDigest.toHex(digest.digest());
+                return uploadToken;
+            };
+            String token = metrics.time(UploadMetrics.UPLOAD, () -> Retry.run("Upload of " + file.getName(), retries, console, upload));
+            long fileSize = size[0];
+
+            String fileName = metrics.time(UploadMetrics.TEMPLATE, () -> expandFileName(file, file.getName(), fileSize, sha256[0], metrics, taskContext, config, console));
+            claimName(names, file, fileName);
+            if (issue != null) {
+                issue.add(file, fileName, upload, targets.isEmpty() ? token : null, metrics);
+            }
+            List<Exception> errors = linkToTargets(redmineUrl, apiKey, targets, token, fileName, upload, parallelism, metrics, taskContext, config, console);
+            Result.Detail detail = Result.Detail.combine(file.getName(), outcomes(targets, errors, "Uploaded as " + fileName + " (" + fileSize + " bytes)"));
+            detail.setRemoteNames(Collections.singletonList(fileName));
+            return detail;
+        } catch (Exception e) {
+            console.error("Couldn't upload " + file + ": " + e, e);
+            return new Result.Detail(file.getName(), false, "Failed: " + e);
+        }
+    }
+
+    /**
+     * @param targets Project versions the file was linked to
+     * @param errors  Error for each target, or null
+     * @param message Message for the targets without error
+     * @return The outcome for each target
+     */
+    private static List<Result.Detail> outcomes(List<Target> targets, List<Exception> errors, String message) {
+        List<Result.Detail> outcomes = new ArrayList<>();
+        for (int i = 0; i < targets.size(); i++) {
+            Exception error = errors.get(i);
+            outcomes.add(new Result.Detail(targets.get(i).toString(), error == null, error == null ? message : "Failed: " + error));
+        }
+        return outcomes;
+    }
+
+    /**
+     * @param detail  Outcome of a file for the versions
+     * @param targets Project versions the file was published to
+     * @param outcome Outcome of the file for the issue
+     * @return The outcome of the file for the versions and the issue
+     */
+    private static Result.Detail withOutcome(Result.Detail detail, List<Target> targets, Result.Detail outcome) {
+        List<Result.Detail> outcomes = new ArrayList<>();
+        if (detail.getTargets() != null) {
+            outcomes.addAll(detail.getTargets());
+        } else {
+            for (Target target : targets) {
+                outcomes.add(detail.isSkipped() ? Result.Detail.skipped(target.toString(), detail.getMessage()) : new Result.Detail(target.toString(), detail.isSuccess(), detail.getMessage()));
+            }
+        }
+        outcomes.add(outcome);
+        Result.Detail combined = Result.Detail.combine(detail.getName(), outcomes);
+        combined.setRemoteNames(detail.getRemoteNames());
+        combined.setMetrics(detail.getMetrics());
+        return combined;
     }
 
     /**
@@ -94,88 +986,252 @@ public class RedmineUploadFileTaskExecutor {
      *
      * @param redmineUrl Redmine URL
      * @param apiKey     Redmine API key
-     * @param workingDir Go working dir
-     * @param config     Config
+     * @param file       File to upload
+     * @param metrics    Metrics of the file
      * @param console    Logging console
-     * @return Redmine attachment token container
-     * @throws IOException In case of network error
+     * @return Redmine attachment token
+     * @throws IOException In case of network error, or if Redmine didn't accept the file
      */
-    private AttachmentUpload uploadFile(String redmineUrl, String apiKey, String workingDir, TaskConfig config, JobConsoleLogger console) throws IOException {
+    private String uploadFile(String redmineUrl, String apiKey, File file, UploadMetrics metrics, ConsoleLog console) throws IOException {
         String url = redmineUrl + "/uploads.json";
-        URLConnection connection = new URL(url).openConnection();
-        connection.setDoOutput(true);
-        connection.setRequestProperty("Content-Type", "application/octet-stream");
-        connection.setRequestProperty("X-Redmine-API-Key", apiKey);
+        if (!file.isFile()) {
+            throw new FileNotFoundException("Artifact not found: " + file.getAbsolutePath());
+        }
 
-        console.printLine("Uploading " + config.getFilePath() + " to " + url);
+        console.printLine("Uploading " + file + " (" + file.length() + " bytes) to " + url);
 
-        File file = new File(workingDir, config.getFilePath());
-        try (OutputStream output = connection.getOutputStream()) {
-            Files.copy(file.toPath(), output);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            ProgressOutputStream[] sent = new ProgressOutputStream[1];
+            String token = upload(url, apiKey, size, output -> {
+                sent[0] = new ProgressOutputStream(output, console, file.getName(), size);
+                streamFile(channel, sent[0]);
+            }, console);
+            metrics.uploaded(sent[0].getByteCount(), sent[0].getElapsedNanos());
+            return token;
         }
+    }
 
-        InputStream response = connection.getInputStream();
-        String uploadTokenJson = getText(response);
+    /**
+     * Send a request body to the uploads endpoint, within the limits of {@link UploadThrottle}
+     *
+     * @param url     Uploads URL
+     * @param apiKey  Redmine API key
+     * @param length  Length of the body, or -1 if it is not known in advance
+     * @param body    Body writer
+     * @param console Logging console
+     * @return Redmine attachment token
+     * @throws IOException In case of network error, or if Redmine didn't accept the file
+     */
+    private String upload(String url, String apiKey, long length, Transport.Body body, ConsoleLog console) throws IOException {
+        AttachmentUpload upload;
+        try (UploadThrottle.Slot slot = UploadThrottle.acquire(url)) {
+            if (slot.getWaitedMs() > 0) {
+                console.printLine(String.format(Locale.ROOT, "Waited %.1fs for an upload slot", slot.getWaitedMs() / 1000.0));
+            }
+            UploadThrottle.ThrottledOutputStream[] throttled = new UploadThrottle.ThrottledOutputStream[1];
+            upload = TaskPlugin.HTTP.send(url, "POST", apiKey, "application/octet-stream", length, output -> {
+                throttled[0] = UploadThrottle.throttle(output);
+                body.writeTo(throttled[0]);
+            }, AttachmentUpload.class);
+            if (throttled[0] != null && throttled[0].getWaitedMs() > 0) {
+                console.printLine(String.format(Locale.ROOT, "Bandwidth limit slowed the upload down by %.1fs", throttled[0].getWaitedMs() / 1000.0));
+            }
+        }
 
-        return TaskPlugin.GSON.fromJson(uploadTokenJson, AttachmentUpload.class);
+        if (upload == null || upload.upload == null || upload.upload.token == null || upload.upload.token.trim().isEmpty()) {
+            throw new IOException("Redmine didn't accept the file upload. Check API key, URL, artifact path...");
+        }
+        console.addSecret(upload.upload.token);
+        return upload.upload.token;
     }
 
     /**
-     * Link attachment upload and project versions (will make the file appear in the files tab of Redmine)
+     * Copy the whole file to the request body through a small buffer, so that memory usage does not depend on the
+     * artifact size
      *
-     * @param redmineUrl  Redmine URL
-     * @param apiKey      Redmine API key
-     * @param upload      Result of file upload (for the token)
+     * @param channel File to send
+     * @param output  Request body
+     * @return Number of bytes sent
+     * @throws IOException In case of I/O error
+     */
+    static long streamFile(FileChannel channel, OutputStream output) throws IOException {
+        ByteBuffer buffer = UPLOAD_BUFFER.get();
+        long total = 0;
+        buffer.clear();
+        int read;
+        while ((read = channel.read(buffer)) != -1) {
+            output.write(buffer.array(), 0, read);
+            total += read;
+            buffer.clear();
+        }
+        return total;
+    }
+
+    /**
+     * Copy a range of a file with positional reads, so that several ranges of the same file can be read concurrently
+     *
+     * @param channel File
+     * @param offset  Start of the range
+     * @param length  Length of the range
+     * @param output  Request body
+     * @throws IOException In case of I/O error, or if the file is shorter than the range
+     */
+    static void streamRange(FileChannel channel, long offset, long length, OutputStream output) throws IOException {
+        ByteBuffer buffer = UPLOAD_BUFFER.get();
+        long position = offset;
+        long end = offset + length;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("File ended at " + position + ", expected " + end + " bytes");
+            }
+            position += read;
+            output.write(buffer.array(), 0, read);
+        }
+    }
+
+    /**
+     * Reserve the name of a file in Redmine for the job: a pattern can match several files that the File Name template
+     * gives the same name, e.g. two {@code app.apk} in different folders with {@code %F}, and only the first one is
+     * published
+     *
+     * @param names    Names already given to the files of the job
+     * @param file     File or directory to upload
+     * @param fileName Its name in Redmine
+     * @throws IOException If another file of the job has this name
+     */
+    private static void claimName(Map<String, File> names, File file, String fileName) throws IOException {
+        File other = names.putIfAbsent(fileName, file);
+        if (other != null && !other.equals(file)) {
+            throw new IOException("File Name gives " + file + " the same name as " + other + ": " + fileName
+                    + ", add %H or %S to the File Name to tell them apart");
+        }
+    }
+
+    /**
+     * Compute the name of the file in Redmine, from the File Name template
+     *
+     * @param file        File or directory to upload
+     * @param name        Name of the uploaded file (%F)
+     * @param size        Size of the uploaded file (%S)
+     * @param sha256      SHA-256 of the uploaded file (%H)
+     * @param metrics     Metrics of the file
      * @param taskContext Task context (for environment variables)
      * @param config      Config
-     * @param console     Logging console   @throws IOException In case of network error
-     */
-    private void linkUploadToVersion(String redmineUrl, String apiKey, AttachmentUpload upload, Context taskContext, TaskConfig config, JobConsoleLogger console) throws IOException {
-        String fileName = config.getFileName();
-        Map<String, String> replacements = new HashMap<String, String>() {{
-            String sha1 = (String) taskContext.getEnvironmentVariables().get("GO_REVISION");
-            put("%R", sha1);
-            put("%r", sha1 != null && sha1.length() > 8 ? sha1.substring(0, 8) : sha1);
-            put("%P", (String) taskContext.getEnvironmentVariables().get("GO_PIPELINE_NAME"));
-            put("%C", (String) taskContext.getEnvironmentVariables().get("GO_PIPELINE_COUNTER"));
-            put("%L", (String) taskContext.getEnvironmentVariables().get("GO_PIPELINE_LABEL"));
-            put("%A", getAndroidVersionName(taskContext, config));
-        }};
-        for (String key : replacements.keySet()) {
-            console.printLine("Replacing " + key + " with " + replacements.get(key));
-            fileName = fileName.replaceAll(key, replacements.get(key));
-        }
-
-        String description = String.format(Locale.getDefault(),
+     * @param console     Logging console
+     * @return The file name
+     */
+    private String expandFileName(File file, String name, long size, String sha256, UploadMetrics metrics, Context taskContext, TaskConfig config, ConsoleLog console) {
+        Map<String, String> environment = taskContext.getEnvironmentVariables();
+        String fileName = FileNameTemplate.compile(config.getFileName()).expand(new FileNameTemplate.Values() {
+            @Override
+            public String get(char placeholder) {
+                switch (placeholder) {
+                    case 'R':
+                        return environment.get("GO_REVISION");
+                    case 'r':
+                        return abbreviate(environment.get("GO_REVISION"));
+                    case 'P':
+                        return environment.get("GO_PIPELINE_NAME");
+                    case 'C':
+                        return environment.get("GO_PIPELINE_COUNTER");
+                    case 'L':
+                        return environment.get("GO_PIPELINE_LABEL");
+                    case 'A':
+                        long start = System.nanoTime();
+                        String versionName = getAndroidVersionName(file, taskContext, config);
+                        metrics.add(UploadMetrics.ANDROID_VERSION, System.nanoTime() - start);
+                        return versionName;
+                    case 'F':
+                        return name;
+                    case 'S':
+                        return String.valueOf(size);
+                    case 'H':
+                        return sha256;
+                    case 'h':
+                        return abbreviate(sha256);
+                    default:
+                        return null;
+                }
+            }
+
+            @Override
+            public String env(String name) {
+                return environment.get(name);
+            }
+        });
+        console.printLine("File name of " + file + ": " + fileName);
+        return fileName;
+    }
+
+    private static String abbreviate(String sha) {
+        return sha != null && sha.length() > 8 ? sha.substring(0, 8) : sha;
+    }
+
+    /**
+     * @param taskContext Task context (for environment variables)
+     * @return Description of the files in Redmine: when they were generated, and by which pipeline run
+     */
+    private static String describe(Context taskContext) {
+        String description = taskContext.getEnvironmentVariables().get(Spool.DESCRIPTION_VARIABLE);
+        if (description != null) {
+            return description;
+        }
+        return String.format(Locale.getDefault(),
                 "File generated on %s (go pipeline #%s)",
                 new SimpleDateFormat("dd/MM/yyyy HH:mm:ss", Locale.getDefault()).format(new Date()),
                 taskContext.getEnvironmentVariables().get("GO_PIPELINE_COUNTER"));
+    }
+
+    /**
+     * Link attachment upload and project versions (will make the file appear in the files tab of Redmine)
+     *
+     * @param redmineUrl  Redmine URL
+     * @param apiKey      Redmine API key
+     * @param target      Project version to link the file to
+     * @param token       Token of the file upload
+     * @param fileName    Name of the file in Redmine
+     * @param taskContext Task context (for environment variables)
+     * @param console     Logging console
+     * @return Redmine response
+     * @throws IOException In case of network error, or if Redmine didn't accept the link
+     */
+    private String linkUploadToVersion(String redmineUrl, String apiKey, Target target, String token, String fileName, Context taskContext, ConsoleLog console) throws IOException {
+        String description = describe(taskContext);
 
         // Prepare JSON
         FileUpload linkToVersion = new FileUpload();
         linkToVersion.file.description = description;
-        linkToVersion.file.token = upload.upload.token;
-        linkToVersion.file.versionId = config.getVersionId();
+        linkToVersion.file.token = token;
+        linkToVersion.file.versionId = target.getVersionId();
         linkToVersion.file.filename = fileName;
         String json = TaskPlugin.GSON.toJson(linkToVersion, FileUpload.class);
 
         // Link attachment to version
-        String url = redmineUrl + "/projects/" + config.getProjectId() + "/files.json";
-        URLConnection connection = new URL(url).openConnection();
-        connection.setDoOutput(true);
-        connection.setRequestProperty("Content-Type", "application/json");
-        connection.setRequestProperty("X-Redmine-API-Key", apiKey);
+        String url = redmineUrl + "/projects/" + target.getProjectId() + "/files.json";
+        console.printLine("Linking " + fileName + " to " + target);
+        console.debug("Sending " + json + " to " + url);
 
-        console.printLine("Uploading " + json + " to " + url);
+        String response = TaskPlugin.HTTP.post(url, apiKey, "application/json", json.getBytes(StandardCharsets.UTF_8));
+        console.debug("Result: " + response);
+        return response;
+    }
 
-        try (OutputStream output = connection.getOutputStream()) {
-            output.write(json.getBytes());
+    /**
+     * @param file        Uploaded file: the version name is read from it if it is an APK or AAB
+     * @param taskContext Task context (for environment variables)
+     * @param config      Config
+     * @return The version name, read from the file or from the merged manifest of the app module
+     */
+    private String getAndroidVersionName(File file, Context taskContext, TaskConfig config) {
+        String name = file.getName().toLowerCase();
+        if (name.endsWith(".apk") || name.endsWith(".aab")) {
+            return AndroidVersionName.of(file);
         }
 
-        console.printLine("Result: " + getText(connection.getInputStream()));
-    }
-
-    private String getAndroidVersionName(Context taskContext, TaskConfig config) {
         String appFolder = config.getAppFolder();
         if (appFolder == null || appFolder.trim().length() == 0) {
             appFolder = "app";
@@ -187,20 +1243,7 @@ public class RedmineUploadFileTaskExecutor {
                 + "/build/intermediates/merged_manifests/"
                 + taskContext.getEnvironmentVariables().get("ANDROID_VARIANT")
                 + "/AndroidManifest.xml";
-        return execute(taskContext, new ProcessBuilder("grep", "-oP", "(?<=versionName=\")[^\"]+", manifest));
-    }
-
-    private String execute(Context taskContext, ProcessBuilder androidVersion) {
-        //noinspection unchecked
-        androidVersion.environment().putAll(taskContext.getEnvironmentVariables());
-
-        try {
-            Process process = androidVersion.start();
-            return IOUtils.toString(process.getInputStream(), StandardCharsets.UTF_8).trim();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return "";
+        return AndroidVersionName.of(new File(manifest));
     }
 
     /**
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.benoitduffez.gocd.redmine;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Files already published in the "Files" tab of Redmine projects, cached for a short while so that the jobs (and the
+ * files of a job) publishing to the same project only list them once
+ */
+public class RemoteFiles {
+    private static final long CACHE_TTL_MS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final Map<String, Listing> CACHE = new ConcurrentHashMap<>();
+
+    /**
+     * Find a file of the version with the same content
+     *
+     * @param redmineUrl Redmine URL
+     * @param apiKey     Redmine API key
+     * @param projectId  Project ID
+     * @param versionId  Version ID
+     * @param digest     Digest of the local file
+     * @return The name of the identical file in Redmine, or null if there is none
+     * @throws IOException In case of network error
+     */
+    public static String findIdentical(String redmineUrl, String apiKey, String projectId, String versionId, FileDigest digest) throws IOException {
+        Listing listing = CACHE.computeIfAbsent(cacheKey(redmineUrl, apiKey, projectId), key -> new Listing());
+        for (RedmineFile file : listing.get(redmineUrl, apiKey, projectId)) {
+            if (file.version != null && versionId != null && versionId.trim().equals(file.version.id) && digest.matches(file.digest)) {
+                return file.filename;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * List the files of a project, without using the cache, and refresh the cache with them
+     *
+     * @return The files of the project
+     * @throws IOException In case of network error
+     */
+    public static List<RedmineFile> list(String redmineUrl, String apiKey, String projectId) throws IOException {
+        return CACHE.computeIfAbsent(cacheKey(redmineUrl, apiKey, projectId), key -> new Listing()).refresh(redmineUrl, apiKey, projectId);
+    }
+
+    /**
+     * Forget the files of a project, after some of them were deleted: the listings of all the API keys are stale
+     */
+    public static void invalidate(String redmineUrl, String projectId) {
+        CACHE.keySet().removeIf(key -> key.startsWith(redmineUrl + "|") && key.endsWith("|" + projectId));
+    }
+
+    /**
+     * Record a file that was just linked to a version, so that the next lookups see it without listing the files again
+     */
+    public static void added(String redmineUrl, String apiKey, String projectId, String versionId, String filename, FileDigest digest) {
+        Listing listing = CACHE.get(cacheKey(redmineUrl, apiKey, projectId));
+        if (listing != null) {
+            RedmineFile file = new RedmineFile();
+            file.filename = filename;
+            file.digest = digest.getSha256();
+            file.version = new RedmineFile.Version();
+            file.version.id = versionId.trim();
+            listing.add(file);
+        }
+    }
+
+    /**
+     * @return Key of a listing: the files of a project that are listed depend on what the API key can see
+     */
+    private static String cacheKey(String redmineUrl, String apiKey, String projectId) {
+        return redmineUrl + "|" + apiKey + "|" + projectId;
+    }
+
+    private static class Listing {
+        private List<RedmineFile> files;
+        private long fetchedAt;
+
+        synchronized List<RedmineFile> get(String redmineUrl, String apiKey, String projectId) throws IOException {
+            if (files == null || System.currentTimeMillis() - fetchedAt > CACHE_TTL_MS) {
+                files = fetch(redmineUrl, apiKey, projectId);
+                fetchedAt = System.currentTimeMillis();
+            }
+            return new ArrayList<>(files);
+        }
+
+        synchronized List<RedmineFile> refresh(String redmineUrl, String apiKey, String projectId) throws IOException {
+            files = null;
+            return get(redmineUrl, apiKey, projectId);
+        }
+
+        synchronized void add(RedmineFile file) {
+            if (files != null) {
+                files.add(file);
+            }
+        }
+
+        private static List<RedmineFile> fetch(String redmineUrl, String apiKey, String projectId) throws IOException {
+            FileList list = TaskPlugin.HTTP.get(redmineUrl + "/projects/" + projectId + "/files.json", apiKey, FileList.class);
+            return list == null || list.files == null ? new ArrayList<>() : new ArrayList<>(list.files);
+        }
+    }
+
+    /**
+     * Redmine response for the files listing:
+     * {"files":[{"id":1,"filename":"app.apk","filesize":123,"digest":"...","version":{"id":2,"name":"1.0"},"created_on":"2017-06-01T10:00:00Z",...}]}
+     */
+    static class FileList {
+        List<RedmineFile> files;
+    }
+
+    static class RedmineFile {
+        String id;
+        String filename;
+        String description;
+        String createdOn;
+        String digest;
+        Version version;
+
+        static class Version {
+            String id;
+        }
+    }
+}
@@ -18,13 +18,16 @@ package io.benoitduffez.gocd.redmine;
 
 import com.thoughtworks.go.plugin.api.response.DefaultGoApiResponse;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class Result {
     private boolean success;
     private String message;
     private Exception exception;
+    private List<Detail> details = new ArrayList<>();
 
     public Result(boolean success, String message) {
         this.success = success;
@@ -37,15 +40,145 @@ public class Result {
         this.exception = exception;
     }
 
+    public Result(boolean success, String message, List<Detail> details) {
+        this(success, message);
+        this.details = details;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public List<Detail> getDetails() {
+        return details;
+    }
+
     public Map<String, Object> toMap() {
         HashMap<String, Object> result = new HashMap<>();
         result.put("success", success);
         result.put("message", message);
         result.put("exception", exception);
+        result.put("details", details);
         return result;
     }
 
     public int responseCode() {
         return success ? DefaultGoApiResponse.SUCCESS_RESPONSE_CODE : DefaultGoApiResponse.INTERNAL_ERROR;
     }
+
+    /**
+     * Outcome of one item of the task (e.g. one of the uploaded files)
+     */
+    public static class Detail {
+        private final String name;
+        private final boolean success;
+        private final String message;
+        private boolean skipped;
+        private List<Detail> targets;
+        private transient List<String> remoteNames;
+        private transient UploadMetrics metrics;
+
+        public Detail(String name, boolean success, String message) {
+            this.name = name;
+            this.success = success;
+            this.message = message;
+        }
+
+        /**
+         * @return A successful outcome for an item that didn't need to be uploaded
+         */
+        public static Detail skipped(String name, String message) {
+            Detail detail = new Detail(name, true, message);
+            detail.skipped = true;
+            return detail;
+        }
+
+        /**
+         * @param name     Item name
+         * @param outcomes Outcome for each target: version, or issue
+         * @return The outcome of a target when there is only one, otherwise an outcome that lists them. Without any
+         * target, e.g. when the files are only attached to an issue, a failure until the outcome of the issue is added
+         */
+        public static Detail combine(String name, List<Detail> outcomes) {
+            if (outcomes.isEmpty()) {
+                Detail detail = new Detail(name, false, "Not published to any target");
+                detail.targets = outcomes;
+                return detail;
+            }
+            if (outcomes.size() == 1) {
+                Detail outcome = outcomes.get(0);
+                return outcome.skipped ? skipped(name, outcome.message) : new Detail(name, outcome.success, outcome.message);
+            }
+
+            int failed = 0;
+            int skipped = 0;
+            for (Detail outcome : outcomes) {
+                if (!outcome.success) {
+                    failed++;
+                } else if (outcome.skipped) {
+                    skipped++;
+                }
+            }
+            Detail detail;
+            if (failed > 0) {
+                detail = new Detail(name, false, "Failed for " + failed + "/" + outcomes.size() + " targets");
+            } else if (skipped == outcomes.size()) {
+                detail = skipped(name, "Identical file already in the " + outcomes.size() + " targets, not uploaded");
+            } else {
+                detail = new Detail(name, true, "Published to " + outcomes.size() + " targets" + (skipped > 0 ? ", " + skipped + " of them already had it" : ""));
+            }
+            detail.targets = outcomes;
+            return detail;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isSuccess() {
+            return success;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public boolean isSkipped() {
+            return skipped;
+        }
+
+        /**
+         * @return The outcome for each target, when the item is published to several ones, or null
+         */
+        public List<Detail> getTargets() {
+            return targets;
+        }
+
+        public void setTargets(List<Detail> targets) {
+            this.targets = targets;
+        }
+
+        /**
+         * @return Names of the files in Redmine that hold this item, or null
+         */
+        public List<String> getRemoteNames() {
+            return remoteNames;
+        }
+
+        public void setRemoteNames(List<String> remoteNames) {
+            this.remoteNames = remoteNames;
+        }
+
+        public UploadMetrics getMetrics() {
+            return metrics;
+        }
+
+        public void setMetrics(UploadMetrics metrics) {
+            this.metrics = metrics;
+        }
+    }
 }
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.benoitduffez.gocd.redmine;
+
+import com.thoughtworks.go.plugin.api.task.JobConsoleLogger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Retention of the published files: once the new files are linked, the older files produced by the same File Name
+ * template are deleted from the "Files" tab of the projects, beyond the last N of each version (or of each template),
+ * or when they are older than a number of days.
+ * <p>
+ * A file uploaded in parts and its manifest count as one file. Only the files uploaded by the plugin, recognized by
+ * their description, are ever deleted.
+ */
+public class Retention {
+    public static final String SCOPE_VERSION = "version";
+    public static final String SCOPE_TEMPLATE = "template";
+
+    /**
+     * Suffix of the parts of a file and of their manifest, see {@link FileParts}
+     */
+    private static final Pattern PART_SUFFIX = Pattern.compile("(\\.part\\d+|" + Pattern.quote(FileParts.MANIFEST_SUFFIX) + ")$");
+
+    private final int keep;
+    private final int maxAgeDays;
+    private final String scope;
+    private final boolean dryRun;
+
+    /**
+     * @param keep       Number of files kept in each group, or 0 to keep them all
+     * @param maxAgeDays Age in days above which files are deleted, or 0 to keep them whatever their age
+     * @param scope      {@link #SCOPE_VERSION} to keep files per target version, {@link #SCOPE_TEMPLATE} to keep them
+     *                   per template in the whole project
+     * @param dryRun     Whether the files are only listed instead of deleted
+     */
+    public Retention(int keep, int maxAgeDays, String scope, boolean dryRun) {
+        this.keep = keep;
+        this.maxAgeDays = maxAgeDays;
+        this.scope = scope;
+        this.dryRun = dryRun;
+    }
+
+    public boolean isEnabled() {
+        return keep > 0 || maxAgeDays > 0;
+    }
+
+    public boolean isDryRun() {
+        return dryRun;
+    }
+
+    /**
+     * Delete the files that are not retained. The files of the projects are listed concurrently, and deleted at most
+     * {@code parallelism} at a time.
+     *
+     * @param redmineUrl     Redmine URL
+     * @param apiKey         Redmine API key
+     * @param targets        Project versions the files were published to
+     * @param patterns       Names of the files produced by the template, see {@link FileNameTemplate#toPattern}
+     * @param protectedNames Names of the files published by this job: they are never deleted
+     * @param parallelism    Maximum number of concurrent requests
+     * @param retries        Maximum number of retries of each request
+     * @param console        Logging console
+     * @return The outcome for each deleted file, or for each file that would be deleted in dry run
+     * @throws IOException If the files couldn't be listed
+     */
+    public List<Result.Detail> prune(String redmineUrl, String apiKey, List<Target> targets, List<Pattern> patterns, Set<String> protectedNames, int parallelism, int retries, JobConsoleLogger console) throws IOException {
+        Map<String, Set<String>> versionsByProject = new LinkedHashMap<>();
+        for (Target target : targets) {
+            versionsByProject.computeIfAbsent(target.getProjectId(), projectId -> new HashSet<>()).add(target.getVersionId());
+        }
+        List<String> projectIds = new ArrayList<>(versionsByProject.keySet());
+        List<List<RemoteFiles.RedmineFile>> listings = runAll(projectIds, parallelism,
+                projectId -> Retry.run("Listing of the files of project #" + projectId, retries, console, () -> RemoteFiles.list(redmineUrl, apiKey, projectId)));
+
+        long cutoff = maxAgeDays > 0 ? System.currentTimeMillis() - TimeUnit.DAYS.toMillis(maxAgeDays) : Long.MIN_VALUE;
+        List<RemoteFiles.RedmineFile> deletions = new ArrayList<>();
+        List<String> deletionProjects = new ArrayList<>();
+        for (int i = 0; i < projectIds.size(); i++) {
+            for (List<RemoteFiles.RedmineFile> release : expired(listings.get(i), versionsByProject.get(projectIds.get(i)), patterns, protectedNames, cutoff)) {
+                for (RemoteFiles.RedmineFile file : release) {
+                    deletions.add(file);
+                    deletionProjects.add(projectIds.get(i));
+                }
+            }
+        }
+        if (deletions.isEmpty()) {
+            console.printLine("Retention: no file to delete");
+            return new ArrayList<>();
+        }
+
+        if (dryRun) {
+            List<Result.Detail> details = new ArrayList<>();
+            for (RemoteFiles.RedmineFile file : deletions) {
+                console.printLine("Retention (dry run): would delete " + describe(file));
+                details.add(new Result.Detail(file.filename, true, "Would be deleted (" + describe(file) + ")"));
+            }
+            return details;
+        }
+
+        List<Result.Detail> details = runAll(deletions, parallelism, file -> {
+            try {
+                Retry.run("Deletion of " + file.filename, retries, console, () -> TaskPlugin.HTTP.delete(redmineUrl + "/attachments/" + file.id + ".json", apiKey));
+                console.printLine("Retention: deleted " + describe(file));
+                return new Result.Detail(file.filename, true, "Deleted (" + describe(file) + ")");
+            } catch (IOException e) {
+                console.printLine("Retention: couldn't delete " + describe(file) + ": " + e);
+                return new Result.Detail(file.filename, false, "Couldn't be deleted: " + e);
+            }
+        });
+        for (String projectId : new HashSet<>(deletionProjects)) {
+            RemoteFiles.invalidate(redmineUrl, projectId);
+        }
+        return details;
+    }
+
+    /**
+     * @param files          Files of a project
+     * @param versionIds     Target versions in this project
+     * @param patterns       Names of the files produced by the template
+     * @param protectedNames Names of the files published by this job
+     * @param cutoff         Time before which files are too old
+     * @return The files to delete, grouped by release: a file, or its parts and manifest
+     */
+    private List<List<RemoteFiles.RedmineFile>> expired(List<RemoteFiles.RedmineFile> files, Set<String> versionIds, List<Pattern> patterns, Set<String> protectedNames, long cutoff) {
+        // Group -> release name -> files of the release
+        Map<String, Map<String, List<RemoteFiles.RedmineFile>>> groups = new LinkedHashMap<>();
+        for (RemoteFiles.RedmineFile file : files) {
+            String versionId = file.version == null ? null : file.version.id;
+            if (file.id == null || file.filename == null || (SCOPE_VERSION.equals(scope) && !versionIds.contains(versionId))) {
+                continue;
+            }
+            String release = PART_SUFFIX.matcher(file.filename).replaceFirst("");
+            boolean uploadedByPlugin = file.description != null && RedmineUploadFileTaskExecutor.DESCRIPTION.matcher(file.description).matches();
+            if (!uploadedByPlugin && !protectedNames.contains(release)) {
+                // Uploaded by hand or by another tool. The files of this job count, even if their description isn't known yet
+                continue;
+            }
+            for (int p = 0; p < patterns.size(); p++) {
+                if (patterns.get(p).matcher(release).matches()) {
+                    String group = SCOPE_VERSION.equals(scope) ? p + "|" + versionId : String.valueOf(p);
+                    groups.computeIfAbsent(group, key -> new LinkedHashMap<>()).computeIfAbsent(release, key -> new ArrayList<>()).add(file);
+                    break;
+                }
+            }
+        }
+
+        List<List<RemoteFiles.RedmineFile>> expired = new ArrayList<>();
+        for (Map<String, List<RemoteFiles.RedmineFile>> group : groups.values()) {
+            List<Map.Entry<String, List<RemoteFiles.RedmineFile>>> releases = new ArrayList<>(group.entrySet());
+            // Attachment IDs grow with time: sort the newest releases first
+            releases.sort(Comparator.comparingLong((Map.Entry<String, List<RemoteFiles.RedmineFile>> release) -> newestId(release.getValue())).reversed());
+            for (int rank = 0; rank < releases.size(); rank++) {
+                Map.Entry<String, List<RemoteFiles.RedmineFile>> release = releases.get(rank);
+                boolean tooMany = keep > 0 && rank >= keep;
+                boolean tooOld = newestCreation(release.getValue()) < cutoff;
+                if ((tooMany || tooOld) && !protectedNames.contains(release.getKey())) {
+                    expired.add(release.getValue());
+                }
+            }
+        }
+        return expired;
+    }
+
+    private static long newestId(List<RemoteFiles.RedmineFile> files) {
+        long newest = -1;
+        for (RemoteFiles.RedmineFile file : files) {
+            try {
+                newest = Math.max(newest, Long.parseLong(file.id.trim()));
+            } catch (NumberFormatException ignored) {
+                // Not a Redmine attachment ID, sorted last
+            }
+        }
+        return newest;
+    }
+
+    /**
+     * @return Creation time of the newest file, or {@link Long#MAX_VALUE} if it is not known, so that it is not
+     * considered too old
+     */
+    private static long newestCreation(List<RemoteFiles.RedmineFile> files) {
+        long newest = Long.MIN_VALUE;
+        for (RemoteFiles.RedmineFile file : files) {
+            try {
+                newest = Math.max(newest, Instant.parse(file.createdOn).toEpochMilli());
+            } catch (DateTimeParseException | NullPointerException e) {
+                return Long.MAX_VALUE;
+            }
+        }
+        return newest;
+    }
+
+    private static String describe(RemoteFiles.RedmineFile file) {
+        return file.filename + " #" + file.id
+                + (file.version == null ? "" : " of version #" + file.version.id)
+                + (file.createdOn == null ? "" : ", created on " + file.createdOn);
+    }
+
+    private interface Task<T, R> {
+        R run(T item) throws IOException;
+    }
+
+    /**
+     * Run a task on each item, at most {@code parallelism} at a time
+     *
+     * @return The results, in the same order as the items
+     * @throws IOException The first error of the tasks, once they are all done
+     */
+    private static <T, R> List<R> runAll(List<T> items, int parallelism, Task<T, R> task) throws IOException {
+        List<R> results = new ArrayList<>();
+        if (items.isEmpty()) {
+            return results;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(parallelism, items.size()));
+        try {
+            List<Future<R>> futures = new ArrayList<>();
+            for (T item : items) {
+                futures.add(pool.submit(() -> task.run(item)));
+            }
+            IOException error = null;
+            for (Future<R> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    if (error == null) {
+                        error = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                    }
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted");
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
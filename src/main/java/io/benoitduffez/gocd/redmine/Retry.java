@@ -0,0 +1,87 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.benoitduffez.gocd.redmine;
+
+import com.thoughtworks.go.plugin.api.task.JobConsoleLogger;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Runs network calls again on transient failures, with exponential backoff and jitter
+ */
+public class Retry {
+    private static final long BASE_DELAY_MS = 1000;
+    private static final long MAX_DELAY_MS = 30000;
+
+    public interface Call<T> {
+        T call() throws IOException;
+    }
+
+    /**
+     * Run the call, retrying it up to {@code retries} times if it fails with a transient error
+     *
+     * @param what    Description of the call, for the logs
+     * @param retries Maximum number of retries (0 to run the call only once)
+     * @param console Logging console
+     * @param call    Network call
+     * @param <T>     Result type
+     * @return Result of the first successful call
+     * @throws IOException The error of the last attempt, or the first non transient error
+     */
+    public static <T> T run(String what, int retries, JobConsoleLogger console, Call<T> call) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return call.call();
+            } catch (IOException e) {
+                if (attempt >= retries || !isTransient(e)) {
+                    throw e;
+                }
+                long delay = delay(attempt);
+                console.printLine(what + " failed (" + e + "), retry " + (attempt + 1) + "/" + retries + " in " + delay + " ms");
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Backoff delay before the given retry: exponential, capped, with a random half to spread the retries of
+     * concurrent jobs
+     */
+    static long delay(int attempt) {
+        long delay = Math.min(MAX_DELAY_MS, BASE_DELAY_MS << Math.min(attempt, 16));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    static boolean isTransient(IOException e) {
+        if (e instanceof RedmineException) {
+            return ((RedmineException) e).isTransient();
+        }
+        // An open circuit stays open longer than the backoff: the job fails fast instead
+        if (e instanceof CircuitBreaker.OpenException) {
+            return false;
+        }
+        // Missing local files won't appear by themselves, everything else is considered a network error
+        return !(e instanceof FileNotFoundException);
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.benoitduffez.gocd.redmine;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Calls in flight in the plugin JVM, by key: concurrent executions that need the same call wait for the first one and
+ * share its result, instead of running it again
+ *
+ * @param <K> Key of a call
+ * @param <V> Result of a call
+ */
+public class SingleFlight<K, V> {
+    private final Map<K, CompletableFuture<V>> calls = new ConcurrentHashMap<>();
+
+    /**
+     * Run the call, or wait for the result of the same call if it is already running
+     *
+     * @param key  Key of the call
+     * @param call Call, only run if it is not already running
+     * @return The result of the call
+     * @throws IOException The error of the call
+     */
+    public V run(K key, Retry.Call<V> call) throws IOException {
+        Flight flight = join(key);
+        if (!flight.isLeader()) {
+            return flight.await();
+        }
+        try {
+            V value = call.call();
+            flight.complete(value);
+            return value;
+        } catch (Throwable e) {
+            // Errors too, otherwise the followers would wait forever
+            flight.fail(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Join the call of that key: the first caller leads it and must {@link Flight#complete complete} or
+     * {@link Flight#fail fail} it whatever happens, {@link Error}s included, the next ones {@link Flight#await() wait}
+     * for it
+     *
+     * @param key Key of the call
+     * @return The call
+     */
+    public Flight join(K key) {
+        CompletableFuture<V> mine = new CompletableFuture<>();
+        CompletableFuture<V> running = calls.putIfAbsent(key, mine);
+        return running == null ? new Flight(key, mine, true) : new Flight(key, running, false);
+    }
+
+    /**
+     * A call in flight
+     */
+    public class Flight {
+        private final K key;
+        private final CompletableFuture<V> result;
+        private final boolean leader;
+
+        private Flight(K key, CompletableFuture<V> result, boolean leader) {
+            this.key = key;
+            this.result = result;
+            this.leader = leader;
+        }
+
+        /**
+         * @return Whether this caller runs the call
+         */
+        public boolean isLeader() {
+            return leader;
+        }
+
+        /**
+         * Called by the leader once the call succeeded
+         */
+        public void complete(V value) {
+            calls.remove(key, result);
+            result.complete(value);
+        }
+
+        /**
+         * Called by the leader once the call failed: the next caller leads a new call
+         */
+        public void fail(Throwable error) {
+            calls.remove(key, result);
+            result.completeExceptionally(error);
+        }
+
+        /**
+         * @return The result of the call
+         * @throws IOException The error of the call
+         */
+        public V await() throws IOException {
+            try {
+                return result.get();
+            } catch (InterruptedException e) {
+                // The call goes on for the other callers
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for another job");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException(cause);
+            }
+        }
+    }
+}
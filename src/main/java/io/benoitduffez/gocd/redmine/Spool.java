@@ -0,0 +1,334 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.benoitduffez.gocd.redmine;
+
+import com.thoughtworks.go.plugin.api.task.JobConsoleLogger;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Durable local spool of the files that couldn't be published because Redmine was unavailable, and the drainer that
+ * publishes them in the background of the plugin JVM once Redmine is back.
+ * <p>
+ * Each entry is a directory with a copy of the file and an {@value #ENTRY_FILE}: the Redmine URL, the task
+ * configuration with the File Name already expanded, and the pipeline variables. An entry directory is only visible
+ * once it is complete. The API key is never written to disk: an entry is published with the key of the job that
+ * spooled it, as long as a job of the agent used that key since the agent started.
+ */
+public class Spool {
+    static final String ENTRY_FILE = "entry.json";
+    private static final String STAGING_SUFFIX = ".tmp";
+
+    /**
+     * Description of the spooled file in Redmine, written when the job ran rather than when the file is published
+     */
+    static final String DESCRIPTION_VARIABLE = "REDMINE_FILE_DESCRIPTION";
+
+    public static final int DEFAULT_BATCH_SIZE = 10;
+    public static final int DEFAULT_PARALLELISM = 2;
+    private static final long DRAIN_PERIOD_SECONDS = 30;
+    private static final long MAX_BACKOFF_MS = TimeUnit.HOURS.toMillis(1);
+
+    private static final Set<File> DIRECTORIES = ConcurrentHashMap.newKeySet();
+    private static final Map<String, String> API_KEYS = new ConcurrentHashMap<>();
+    private static final AtomicBoolean STARTED = new AtomicBoolean();
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private static final ScheduledExecutorService DRAINER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "redmine-spool-drainer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Spool() {
+    }
+
+    /**
+     * @param context Task context
+     * @return The spool directory: {@code REDMINE_SPOOL_DIR}, or {@code redmine-spool} in the directory of the agent
+     */
+    public static File directory(Context context) {
+        String directory = context.getEnvironmentVariables().get("REDMINE_SPOOL_DIR");
+        if (directory == null || directory.trim().isEmpty()) {
+            return new File(System.getProperty("user.dir"), "redmine-spool");
+        }
+        return new File(directory.trim());
+    }
+
+    /**
+     * Called by each job: remember its API key in memory to publish the entries it spooled, and start draining the
+     * spool directory if it has entries
+     *
+     * @param directory Spool directory of the job
+     * @param apiKey    API key of the job
+     */
+    public static void register(File directory, String apiKey) {
+        if (apiKey != null) {
+            API_KEYS.put(fingerprint(apiKey), apiKey);
+        }
+        if (directory.isDirectory() && DIRECTORIES.add(directory.getAbsoluteFile()) && STARTED.compareAndSet(false, true)) {
+            DRAINER.scheduleWithFixedDelay(Spool::drain, DRAIN_PERIOD_SECONDS, DRAIN_PERIOD_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Copy a file to a new entry of the spool, that is not visible until it is {@link Staged#commit committed}
+     *
+     * @param directory Spool directory
+     * @param localName Name of the copy, e.g. the name of the file or of the archive of a directory
+     * @param content   Writes the content of the copy
+     * @return The staged entry
+     * @throws IOException If the file couldn't be copied
+     */
+    public static Staged stage(File directory, String localName, Transport.Body content) throws IOException {
+        String id = System.currentTimeMillis() + "-" + SEQUENCE.incrementAndGet() + "-" + Integer.toHexString(localName.hashCode());
+        File staging = new File(directory, id + STAGING_SUFFIX);
+        if (!staging.mkdirs()) {
+            throw new IOException("Couldn't create the spool entry " + staging);
+        }
+        File copy = new File(staging, localName);
+        try (FileOutputStream output = new FileOutputStream(copy)) {
+            content.writeTo(output);
+            output.getFD().sync();
+        } catch (IOException | RuntimeException e) {
+            FileUtils.deleteQuietly(staging);
+            throw e;
+        }
+        return new Staged(directory, id, copy);
+    }
+
+    /**
+     * An entry being written to the spool
+     */
+    public static class Staged {
+        private final File directory;
+        private final String id;
+        private final File file;
+
+        private Staged(File directory, String id, File file) {
+            this.directory = directory;
+            this.id = id;
+            this.file = file;
+        }
+
+        /**
+         * @return The copy of the file in the spool
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * Write the metadata of the entry, and make it visible to the drainer
+         *
+         * @param redmineUrl  Redmine URL
+         * @param apiKey      API key of the job, only its fingerprint is written
+         * @param config      Configuration of the task that publishes the spooled file
+         * @param environment Environment variables of that task, without secrets
+         * @throws IOException If the entry couldn't be written
+         */
+        public void commit(String redmineUrl, String apiKey, Map<String, String> config, Map<String, String> environment) throws IOException {
+            Entry entry = new Entry();
+            entry.redmineUrl = redmineUrl;
+            entry.apiKey = fingerprint(apiKey);
+            entry.config = config;
+            entry.environment = environment;
+            entry.spooledAt = System.currentTimeMillis();
+            try {
+                write(new File(file.getParentFile(), ENTRY_FILE), entry);
+                Files.move(file.getParentFile().toPath(), new File(directory, id).toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException | RuntimeException e) {
+                discard();
+                throw e;
+            }
+            register(directory, apiKey);
+        }
+
+        /**
+         * Delete the entry, when it can't be committed
+         */
+        public void discard() {
+            FileUtils.deleteQuietly(file.getParentFile());
+        }
+    }
+
+    /**
+     * Publish a batch of the entries of each spool directory, for the Redmine servers that are not known to be down
+     */
+    static void drain() {
+        for (File directory : DIRECTORIES) {
+            try {
+                drain(directory);
+            } catch (RuntimeException e) {
+                TaskPlugin.LOGGER.warn("Couldn't drain the spool " + directory, e);
+            }
+        }
+    }
+
+    private static void drain(File directory) {
+        File[] entries = directory.listFiles(file -> file.isDirectory() && !file.getName().endsWith(STAGING_SUFFIX));
+        if (entries == null || entries.length == 0) {
+            return;
+        }
+        // Entry names start with the time they were spooled: publish the oldest first
+        Arrays.sort(entries);
+
+        int batchSize = TaskConfig.parseInt(System.getenv("GOCD_REDMINE_SPOOL_BATCH"), 1, DEFAULT_BATCH_SIZE);
+        long now = System.currentTimeMillis();
+        List<Callable<Void>> batch = new ArrayList<>();
+        for (File entryDirectory : entries) {
+            if (batch.size() >= batchSize) {
+                break;
+            }
+            Entry entry = read(new File(entryDirectory, ENTRY_FILE));
+            if (entry == null || now < entry.nextAttemptAt) {
+                continue;
+            }
+            String apiKey = API_KEYS.get(entry.apiKey);
+            if (apiKey == null) {
+                continue;
+            }
+            try {
+                CircuitBreaker.forUrl(entry.redmineUrl).check();
+            } catch (CircuitBreaker.OpenException e) {
+                continue;
+            }
+            batch.add(() -> {
+                publish(entryDirectory, entry, apiKey);
+                return null;
+            });
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        int parallelism = TaskConfig.parseInt(System.getenv("GOCD_REDMINE_SPOOL_PARALLELISM"), 1, DEFAULT_PARALLELISM);
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(parallelism, batch.size()));
+        try {
+            pool.invokeAll(batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Publish an entry the way the job would have: the entry is removed once the file is published, or tried again
+     * later, with a backoff
+     */
+    private static void publish(File entryDirectory, Entry entry, String apiKey) {
+        Map<String, String> environment = new HashMap<>(entry.environment);
+        environment.put("REDMINE_URL", entry.redmineUrl);
+        environment.put("REDMINE_API_KEY", apiKey);
+        String name = entryDirectory.getName();
+        Result result = new RedmineUploadFileTaskExecutor().execute(new TaskConfig(entry.config), new Context(environment, entryDirectory.getPath()), new JobConsoleLogger() {
+            @Override
+            public void printLine(String line) {
+                TaskPlugin.LOGGER.info("Spool " + name + ": " + line);
+            }
+        });
+
+        if (result.isSuccess()) {
+            TaskPlugin.LOGGER.info("Published the spooled " + entry.config.get(TaskPlugin.FILE_PATH_PROPERTY) + " (" + name + "): " + result.getMessage());
+            try {
+                FileUtils.deleteDirectory(entryDirectory);
+            } catch (IOException e) {
+                TaskPlugin.LOGGER.warn("Couldn't delete the spool entry " + entryDirectory, e);
+            }
+            return;
+        }
+
+        entry.attempts++;
+        entry.lastError = result.getMessage();
+        entry.nextAttemptAt = System.currentTimeMillis() + Math.min(MAX_BACKOFF_MS, TimeUnit.SECONDS.toMillis(DRAIN_PERIOD_SECONDS) << Math.min(entry.attempts, 16));
+        TaskPlugin.LOGGER.warn("Couldn't publish the spooled " + entry.config.get(TaskPlugin.FILE_PATH_PROPERTY) + " (" + name + "), attempt " + entry.attempts + ": " + result.getMessage());
+        try {
+            write(new File(entryDirectory, ENTRY_FILE), entry);
+        } catch (IOException e) {
+            TaskPlugin.LOGGER.warn("Couldn't update the spool entry " + entryDirectory, e);
+        }
+    }
+
+    private static Entry read(File entryFile) {
+        try (Reader reader = new InputStreamReader(new FileInputStream(entryFile), StandardCharsets.UTF_8)) {
+            return TaskPlugin.GSON.fromJson(reader, Entry.class);
+        } catch (Exception e) {
+            TaskPlugin.LOGGER.warn("Ignoring unreadable spool entry " + entryFile, e);
+            return null;
+        }
+    }
+
+    private static void write(File entryFile, Entry entry) throws IOException {
+        File temporary = new File(entryFile.getPath() + STAGING_SUFFIX);
+        try (FileOutputStream output = new FileOutputStream(temporary)) {
+            Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+            TaskPlugin.GSON.toJson(entry, writer);
+            writer.flush();
+            output.getFD().sync();
+        }
+        Files.move(temporary.toPath(), entryFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String fingerprint(String apiKey) {
+        MessageDigest sha256 = FileDigest.newDigest("SHA-256");
+        return FileDigest.toHex(sha256.digest(String.valueOf(apiKey).getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Content of {@value #ENTRY_FILE}
+     */
+    static class Entry {
+        String redmineUrl;
+        /**
+         * SHA-256 of the API key
+         */
+        String apiKey;
+        Map<String, String> config;
+        Map<String, String> environment;
+        long spooledAt;
+        int attempts;
+        String lastError;
+        long nextAttemptAt;
+    }
+}
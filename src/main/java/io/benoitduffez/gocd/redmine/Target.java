@@ -0,0 +1,55 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.benoitduffez.gocd.redmine;
+
+/**
+ * Redmine project version the files are published to, with the IDs resolved from the configuration
+ */
+public class Target {
+    private final String projectId;
+    private final String versionId;
+    private final String versionName;
+
+    public Target(String projectId, String versionId, String versionName) {
+        this.projectId = projectId;
+        this.versionId = versionId;
+        this.versionName = versionName;
+    }
+
+    /**
+     * @return Numeric project ID
+     */
+    public String getProjectId() {
+        return projectId;
+    }
+
+    /**
+     * @return Numeric version ID
+     */
+    public String getVersionId() {
+        return versionId;
+    }
+
+    public String getVersionName() {
+        return versionName;
+    }
+
+    @Override
+    public String toString() {
+        return "version " + versionName + " (#" + versionId + ") of project #" + projectId;
+    }
+}
@@ -16,49 +16,281 @@
 
 package io.benoitduffez.gocd.redmine;
 
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class TaskConfig {
-    private final String projectId;
-    private final String versionId;
-    private final String filePath;
-    private final String fileName;
-    private final String appFolder;
-
-    public TaskConfig(Map config) throws IOException {
-        projectId = getValue(config, TaskPlugin.PROJECT_ID_PROPERTY);
-        versionId = getValue(config, TaskPlugin.VERSION_ID_PROPERTY);
-        filePath = getValue(config, TaskPlugin.FILE_PATH_PROPERTY);
-        fileName = getValue(config, TaskPlugin.FILE_NAME_PROPERTY);
-        appFolder = getValue(config, TaskPlugin.APP_FOLDER_PROPERTY);
-    }
-
-    private String getValue(Map config, String property) {
-        Map map = (Map) config.get(property);
-        if (map == null) {
-            return null;
-        }
-        return (String) map.get("value");
+    public static final int DEFAULT_PARALLELISM = 4;
+    public static final int DEFAULT_RETRIES = 3;
+    public static final int DEFAULT_FOLLOW_QUIET_PERIOD = 30;
+
+    private final Map<String, String> values;
+
+    /**
+     * @param values Value of each property, by property name
+     */
+    public TaskConfig(Map<String, String> values) {
+        this.values = Collections.unmodifiableMap(new HashMap<>(values));
+    }
+
+    /**
+     * @param property Property name, e.g. {@link TaskPlugin#PROJECT_ID_PROPERTY}
+     * @return The raw value of the property, or null if it is not set
+     */
+    public String getValue(String property) {
+        return values.get(property);
+    }
+
+    /**
+     * @return The raw value of each property that is set, by property name
+     */
+    public Map<String, String> getValues() {
+        return values;
     }
 
     public String getProjectId() {
-        return projectId;
+        return values.get(TaskPlugin.PROJECT_ID_PROPERTY);
+    }
+
+    /**
+     * @return The projects to publish to: the Project value split on commas and new lines
+     */
+    public List<String> getProjectIds() {
+        return split(getProjectId());
     }
 
     public String getVersionId() {
-        return versionId;
+        return values.get(TaskPlugin.VERSION_ID_PROPERTY);
+    }
+
+    /**
+     * @return The versions to publish to: the Version value split on commas and new lines
+     */
+    public List<String> getVersionIds() {
+        return split(getVersionId());
     }
 
     public String getFilePath() {
-        return filePath;
+        return values.get(TaskPlugin.FILE_PATH_PROPERTY);
+    }
+
+    /**
+     * @return The paths and glob patterns of the files to upload: the File Path value split on commas and new lines
+     */
+    public List<String> getFilePaths() {
+        return split(getFilePath());
     }
 
     public String getFileName() {
-        return fileName;
+        return values.get(TaskPlugin.FILE_NAME_PROPERTY);
     }
 
     public String getAppFolder() {
-        return appFolder;
+        return values.get(TaskPlugin.APP_FOLDER_PROPERTY);
+    }
+
+    /**
+     * @return Maximum number of files uploaded at the same time
+     */
+    public int getParallelism() {
+        return parseInt(values.get(TaskPlugin.PARALLELISM_PROPERTY), 1, DEFAULT_PARALLELISM);
+    }
+
+    /**
+     * @return Maximum number of retries of each network call
+     */
+    public int getRetries() {
+        return parseInt(values.get(TaskPlugin.RETRIES_PROPERTY), 0, DEFAULT_RETRIES);
+    }
+
+    /**
+     * @return Format of the archive uploaded for a directory: {@link ArchiveWriter#ZIP} (default) or
+     * {@link ArchiveWriter#TAR_GZ}
+     */
+    public String getArchiveFormat() {
+        String archiveFormat = values.get(TaskPlugin.ARCHIVE_FORMAT_PROPERTY);
+        return archiveFormat == null || archiveFormat.trim().isEmpty() ? ArchiveWriter.ZIP : archiveFormat.trim().toLowerCase();
+    }
+
+    /**
+     * @return Compression level of the archive uploaded for a directory, from 0 to 9, or -1 for the default level
+     */
+    public int getCompressionLevel() {
+        return Math.min(9, parseInt(values.get(TaskPlugin.COMPRESSION_LEVEL_PROPERTY), 0, -1));
+    }
+
+    /**
+     * @return Whether the files are uploaded while they are being written, see {@link FileFollower}
+     */
+    public boolean isFollow() {
+        String follow = values.get(TaskPlugin.FOLLOW_PROPERTY);
+        return follow != null && "true".equalsIgnoreCase(follow.trim());
+    }
+
+    /**
+     * @return In follow mode, how many seconds a file must stay the same size to be considered complete
+     */
+    public int getFollowQuietPeriod() {
+        return parseInt(values.get(TaskPlugin.FOLLOW_QUIET_PERIOD_PROPERTY), 1, DEFAULT_FOLLOW_QUIET_PERIOD);
+    }
+
+    /**
+     * @return Size in KB above which files are split into parts, or 0 to split only when Redmine rejects a file
+     */
+    public int getMaxFileSize() {
+        return parseInt(values.get(TaskPlugin.MAX_FILE_SIZE_PROPERTY), 1, 0);
+    }
+
+    /**
+     * @return Number of files of each version (or template) kept by the retention policy, or 0 to keep them all
+     */
+    public int getRetentionKeep() {
+        return parseInt(values.get(TaskPlugin.RETENTION_KEEP_PROPERTY), 1, 0);
+    }
+
+    /**
+     * @return Age in days above which the retention policy deletes files, or 0 to keep them whatever their age
+     */
+    public int getRetentionDays() {
+        return parseInt(values.get(TaskPlugin.RETENTION_DAYS_PROPERTY), 1, 0);
+    }
+
+    /**
+     * @return {@link Retention#SCOPE_VERSION} (default) to apply the retention policy to each version, or
+     * {@link Retention#SCOPE_TEMPLATE} to apply it to all the files of the template in the project
+     */
+    public String getRetentionScope() {
+        String scope = values.get(TaskPlugin.RETENTION_SCOPE_PROPERTY);
+        return scope == null || scope.trim().isEmpty() ? Retention.SCOPE_VERSION : scope.trim().toLowerCase();
+    }
+
+    /**
+     * @return Whether the retention policy only lists the files it would delete
+     */
+    public boolean isRetentionDryRun() {
+        String dryRun = values.get(TaskPlugin.RETENTION_DRY_RUN_PROPERTY);
+        return dryRun != null && "true".equalsIgnoreCase(dryRun.trim());
+    }
+
+    /**
+     * @return Whether the files are spooled when Redmine is unavailable, see {@link Spool}
+     */
+    public boolean isSpool() {
+        String spool = values.get(TaskPlugin.SPOOL_PROPERTY);
+        return spool != null && "true".equalsIgnoreCase(spool.trim());
+    }
+
+    /**
+     * @return Numeric ID of the issue to attach the files to, without a leading {@code #}, or null if it is not set
+     */
+    public String getIssueId() {
+        String issueId = values.get(TaskPlugin.ISSUE_ID_PROPERTY);
+        if (issueId == null || issueId.trim().isEmpty()) {
+            return null;
+        }
+        issueId = issueId.trim();
+        return issueId.startsWith("#") ? issueId.substring(1).trim() : issueId;
+    }
+
+    /**
+     * @return Note added to the issue with the files, or null if it is not set
+     */
+    public String getIssueNote() {
+        String note = values.get(TaskPlugin.ISSUE_NOTE_PROPERTY);
+        return note == null || note.trim().isEmpty() ? null : note.trim();
+    }
+
+    /**
+     * @return Lowest level of the lines printed to the job console (debug, info, warn or error), or null if it is not
+     * set
+     */
+    public String getLogLevel() {
+        String level = values.get(TaskPlugin.LOG_LEVEL_PROPERTY);
+        return level == null || level.trim().isEmpty() ? null : level.trim();
+    }
+
+    private static List<String> split(String value) {
+        List<String> items = new ArrayList<>();
+        if (value != null) {
+            for (String item : value.split("[,\\n]")) {
+                if (!item.trim().isEmpty()) {
+                    items.add(item.trim());
+                }
+            }
+        }
+        return items;
+    }
+
+    /**
+     * @return The value as a number, or the default value if it is empty, not a number or lower than {@code min}
+     */
+    static int parseInt(String value, int min, int defaultValue) {
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            return parsed >= min ? parsed : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Reads the task configuration as GoCD sends it, {"ProjectId":{"value":"1","required":true,...},...}, straight
+     * from the request body
+     */
+    static class Adapter extends TypeAdapter<TaskConfig> {
+        @Override
+        public void write(JsonWriter out, TaskConfig config) throws IOException {
+            if (config == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            for (Map.Entry<String, String> entry : config.values.entrySet()) {
+                out.name(entry.getKey()).beginObject().name("value").value(entry.getValue()).endObject();
+            }
+            out.endObject();
+        }
+
+        @Override
+        public TaskConfig read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            Map<String, String> values = new HashMap<>();
+            in.beginObject();
+            while (in.hasNext()) {
+                String property = in.nextName();
+                if (in.peek() != JsonToken.BEGIN_OBJECT) {
+                    in.skipValue();
+                    continue;
+                }
+                in.beginObject();
+                while (in.hasNext()) {
+                    if (!"value".equals(in.nextName()) || in.peek() == JsonToken.NULL) {
+                        in.skipValue();
+                    } else if (in.peek() == JsonToken.BOOLEAN) {
+                        values.put(property, String.valueOf(in.nextBoolean()));
+                    } else {
+                        values.put(property, in.nextString());
+                    }
+                }
+                in.endObject();
+            }
+            in.endObject();
+            return new TaskConfig(values);
+        }
     }
 }
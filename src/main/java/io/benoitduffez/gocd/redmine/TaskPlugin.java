@@ -29,7 +29,10 @@ import com.thoughtworks.go.plugin.api.request.GoPluginApiRequest;
 import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
 
 import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 @Extension
 public class TaskPlugin implements GoPlugin {
@@ -38,15 +41,66 @@ public class TaskPlugin implements GoPlugin {
     public static final String FILE_PATH_PROPERTY = "FilePath";
     public static final String FILE_NAME_PROPERTY = "FileName";
     public static final String APP_FOLDER_PROPERTY = "AppFolder";
+    public static final String PARALLELISM_PROPERTY = "Parallelism";
+    public static final String RETRIES_PROPERTY = "Retries";
+    public static final String ARCHIVE_FORMAT_PROPERTY = "ArchiveFormat";
+    public static final String COMPRESSION_LEVEL_PROPERTY = "CompressionLevel";
+    public static final String FOLLOW_PROPERTY = "Follow";
+    public static final String FOLLOW_QUIET_PERIOD_PROPERTY = "FollowQuietPeriod";
+    public static final String MAX_FILE_SIZE_PROPERTY = "MaxFileSize";
+    public static final String RETENTION_KEEP_PROPERTY = "RetentionKeep";
+    public static final String RETENTION_DAYS_PROPERTY = "RetentionDays";
+    public static final String RETENTION_SCOPE_PROPERTY = "RetentionScope";
+    public static final String RETENTION_DRY_RUN_PROPERTY = "RetentionDryRun";
+    public static final String LOG_LEVEL_PROPERTY = "LogLevel";
+    public static final String SPOOL_PROPERTY = "Spool";
+    public static final String ISSUE_ID_PROPERTY = "IssueId";
+    public static final String ISSUE_NOTE_PROPERTY = "IssueNote";
+    /**
+     * Gson instance for all the JSON of the plugin: GoCD requests and responses, and Redmine API calls
+     */
     public static final Gson GSON = new GsonBuilder()
             .setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
             .serializeNulls()
+            .registerTypeAdapter(TaskConfig.class, new TaskConfig.Adapter())
+            .registerTypeAdapter(Context.class, new Context.Adapter())
             .create();
 
     public static Logger LOGGER = Logger.getLoggerFor(TaskPlugin.class);
 
+    /**
+     * HTTP client used for all the requests to Redmine, so that connections and TLS sessions are reused across jobs, and
+     * that a server that is down makes them fail fast
+     */
+    public static final Transport HTTP = new CircuitBreakerTransport(Transport.fromEnvironment());
+
     @Override
     public void initializeGoApplicationAccessor(GoApplicationAccessor goApplicationAccessor) {
+        Thread warmUp = new Thread(TaskPlugin::warmUp, "redmine-plugin-warm-up");
+        warmUp.setDaemon(true);
+        warmUp.setPriority(Thread.MIN_PRIORITY);
+        warmUp.start();
+    }
+
+    /**
+     * Called in the background when the plugin is loaded: prepare the static responses, and load the classes used by
+     * the first execution (JSON decoding, file name templates, digests, HTTP and TLS), so that it runs at full speed
+     */
+    static void warmUp() {
+        long start = System.nanoTime();
+        try {
+            new GetConfigRequest().execute();
+            new GetViewRequest().execute();
+            ExecuteRequest.decode("{\"config\":{\"" + FILE_NAME_PROPERTY + "\":{\"value\":\"%P-%C-%F\"}},"
+                    + "\"context\":{\"environmentVariables\":{},\"workingDirectory\":\".\"}}");
+            FileNameTemplate.compile("%P-%C-%F");
+            MessageDigest.getInstance("SHA-256");
+            MessageDigest.getInstance("MD5");
+            HTTP.warmUp();
+            LOGGER.info("Warmed up in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            LOGGER.warn("Couldn't warm up: " + e);
+        }
     }
 
     @Override
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.benoitduffez.gocd.redmine;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timeouts of the requests to Redmine, so that a server that hangs doesn't hold the jobs, and the agents, forever
+ */
+public class Timeouts {
+    public static final int DEFAULT_CONNECT_TIMEOUT_SECONDS = 30;
+    public static final int DEFAULT_READ_TIMEOUT_SECONDS = 300;
+
+    private final long connectMs;
+    private final long readMs;
+    private final long totalMs;
+
+    /**
+     * @param connectMs Maximum time to open a connection, 0 for no limit
+     * @param readMs    Maximum time without receiving anything while waiting for a response, 0 for no limit
+     * @param totalMs   Maximum time of a whole request, body and response included, 0 for no limit
+     */
+    public Timeouts(long connectMs, long readMs, long totalMs) {
+        this.connectMs = connectMs;
+        this.readMs = readMs;
+        this.totalMs = totalMs;
+    }
+
+    /**
+     * Timeouts set by the {@code GOCD_REDMINE_HTTP_CONNECT_TIMEOUT}, {@code GOCD_REDMINE_HTTP_READ_TIMEOUT} and
+     * {@code GOCD_REDMINE_HTTP_TIMEOUT} (total) environment variables of the agent, in seconds. There is no total
+     * timeout by default: an upload takes as long as the file needs.
+     */
+    public static Timeouts fromEnvironment() {
+        return new Timeouts(
+                TimeUnit.SECONDS.toMillis(TaskConfig.parseInt(System.getenv("GOCD_REDMINE_HTTP_CONNECT_TIMEOUT"), 0, DEFAULT_CONNECT_TIMEOUT_SECONDS)),
+                TimeUnit.SECONDS.toMillis(TaskConfig.parseInt(System.getenv("GOCD_REDMINE_HTTP_READ_TIMEOUT"), 0, DEFAULT_READ_TIMEOUT_SECONDS)),
+                TimeUnit.SECONDS.toMillis(TaskConfig.parseInt(System.getenv("GOCD_REDMINE_HTTP_TIMEOUT"), 0, 0)));
+    }
+
+    public long getConnectMs() {
+        return connectMs;
+    }
+
+    public long getReadMs() {
+        return readMs;
+    }
+
+    public long getTotalMs() {
+        return totalMs;
+    }
+
+    /**
+     * @return Maximum time of a request with a small body, which is bound by both the read and total timeouts, 0 for
+     * no limit
+     */
+    public long getShortRequestMs() {
+        if (readMs == 0 || totalMs == 0) {
+            return Math.max(readMs, totalMs);
+        }
+        return Math.min(readMs, totalMs);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.benoitduffez.gocd.redmine;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * How the plugin talks to Redmine. A request failing with a status other than a success throws a
+ * {@link RedmineException}.
+ * <p>
+ * The default transport is {@link RedmineHttpClient}, which holds a thread and a connection per request. On Java 11 and
+ * later, {@code GOCD_REDMINE_HTTP_TRANSPORT=http2} selects a transport based on the JDK HTTP client instead: concurrent
+ * requests to the same host are multiplexed on one HTTP/2 connection.
+ */
+public interface Transport {
+    String HTTP2 = "http2";
+
+    /**
+     * Writes a request body
+     */
+    interface Body {
+        void writeTo(OutputStream output) throws IOException;
+    }
+
+    /**
+     * @return The body of the response to a GET request
+     * @throws IOException      In case of network error
+     * @throws RedmineException If the response status is not a success
+     */
+    String get(String url, String apiKey) throws IOException;
+
+    /**
+     * @param type Class of the response
+     * @return The response to a GET request, decoded while it is read, or null if it is empty
+     * @throws IOException      In case of network error, or if the response is not valid
+     * @throws RedmineException If the response status is not a success
+     */
+    <T> T get(String url, String apiKey, Class<T> type) throws IOException;
+
+    /**
+     * @return The body of the response to a POST request with a small body
+     * @throws IOException      In case of network error
+     * @throws RedmineException If the response status is not a success
+     */
+    String post(String url, String apiKey, String contentType, byte[] body) throws IOException;
+
+    /**
+     * Send a request with a streamed body: the body is never buffered in memory
+     *
+     * @param length Length of the body, or -1 if it is not known in advance (the body is then sent in chunks)
+     * @return The body of the response
+     * @throws IOException      In case of network error
+     * @throws RedmineException If the response status is not a success
+     */
+    String send(String url, String method, String apiKey, String contentType, long length, Body body) throws IOException;
+
+    /**
+     * Send a request with a streamed body, see {@link #send(String, String, String, String, long, Body)}
+     *
+     * @param type Class of the response
+     * @return The response, decoded while it is read, or null if it is empty
+     * @throws IOException      In case of network error, or if the response is not valid
+     * @throws RedmineException If the response status is not a success
+     */
+    <T> T send(String url, String method, String apiKey, String contentType, long length, Body body, Class<T> type) throws IOException;
+
+    /**
+     * @return The body of the response to a DELETE request
+     * @throws IOException      In case of network error
+     * @throws RedmineException If the response status is not a success
+     */
+    String delete(String url, String apiKey) throws IOException;
+
+    /**
+     * Load the classes used by the requests without connecting anywhere, so that the first request doesn't pay for it
+     */
+    void warmUp();
+
+    /**
+     * Create the transport selected by the {@code GOCD_REDMINE_HTTP_TRANSPORT} environment variable of the agent:
+     * {@value #HTTP2} when it is available, otherwise the blocking {@link RedmineHttpClient}
+     */
+    static Transport fromEnvironment() {
+        if (HTTP2.equalsIgnoreCase(String.valueOf(System.getenv("GOCD_REDMINE_HTTP_TRANSPORT")).trim())) {
+            try {
+                // Compiled for Java 11 in its own source set: it can only be loaded by a recent JVM
+                return (Transport) Class.forName(Transport.class.getPackage().getName() + ".Http2Transport").getConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                TaskPlugin.LOGGER.warn("The HTTP/2 transport needs Java 11 or later, using the default transport: " + e);
+            }
+        }
+        return RedmineHttpClient.fromEnvironment();
+    }
+
+    /**
+     * Wait for an asynchronous request
+     *
+     * @return The result of the request
+     * @throws IOException The error of the request
+     */
+    static <T> T await(CompletableFuture<T> request) throws IOException {
+        try {
+            return request.get();
+        } catch (InterruptedException e) {
+            request.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for Redmine");
+        } catch (CancellationException e) {
+            throw new InterruptedIOException("Request to Redmine cancelled");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.benoitduffez.gocd.redmine;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache whose entries expire after a while, shared by the executions of the plugin JVM
+ *
+ * @param <V> Value type
+ */
+public class TtlCache<V> {
+    private static final int MAX_SIZE = 1000;
+
+    private final Map<String, Entry<V>> entries = new ConcurrentHashMap<>();
+
+    /**
+     * @param key   Key
+     * @param ttlMs How long the value stays valid
+     * @return The cached value, or null if there is none or it expired
+     */
+    public V get(String key, long ttlMs) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null || System.currentTimeMillis() - entry.createdAt > ttlMs) {
+            return null;
+        }
+        return entry.value;
+    }
+
+    public void put(String key, V value) {
+        if (entries.size() >= MAX_SIZE) {
+            entries.clear();
+        }
+        entries.put(key, new Entry<>(value));
+    }
+
+    public void remove(String key) {
+        entries.remove(key);
+    }
+
+    private static class Entry<V> {
+        final V value;
+        final long createdAt = System.currentTimeMillis();
+
+        Entry(V value) {
+            this.value = value;
+        }
+    }
+}
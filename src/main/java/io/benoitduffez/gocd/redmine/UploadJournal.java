@@ -0,0 +1,149 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.benoitduffez.gocd.redmine;
+
+import com.google.gson.reflect.TypeToken;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the tokens of the files uploaded to Redmine but not linked yet, so that the rerun of a job that was
+ * interrupted before the link step, e.g. by a restart of the agent, can go straight to that step instead of uploading
+ * the file again.
+ * <p>
+ * The journal is a small JSON file in the working dir, only readable by the agent user, entries are keyed by Redmine
+ * URL, file path, size and modification time. The tokens are not kept once the job is done: see {@link #clear()}.
+ */
+public class UploadJournal {
+    static final String JOURNAL_FILE = ".redmine_upload_journal.json";
+
+    /**
+     * Redmine removes the attachments that are not linked to anything after a day, stay well below that
+     */
+    private static final long TOKEN_VALIDITY_MS = TimeUnit.HOURS.toMillis(12);
+
+    private final File journalFile;
+    private final String redmineUrl;
+    private final Map<String, Entry> entries;
+
+    /**
+     * @param workingDir Working dir of the job
+     * @param redmineUrl Redmine URL: a token is only valid for the server it was uploaded to
+     */
+    public UploadJournal(String workingDir, String redmineUrl) {
+        journalFile = new File(workingDir, JOURNAL_FILE);
+        this.redmineUrl = redmineUrl;
+        entries = load(journalFile);
+    }
+
+    private static Map<String, Entry> load(File journalFile) {
+        if (journalFile.isFile()) {
+            try (Reader reader = new InputStreamReader(new FileInputStream(journalFile), StandardCharsets.UTF_8)) {
+                Map<String, Entry> entries = TaskPlugin.GSON.fromJson(reader, new TypeToken<Map<String, Entry>>() {
+                }.getType());
+                if (entries != null) {
+                    return entries;
+                }
+            } catch (Exception e) {
+                TaskPlugin.LOGGER.warn("Ignoring unreadable upload journal " + journalFile, e);
+            }
+        }
+        return new HashMap<>();
+    }
+
+    /**
+     * @param file File to upload
+     * @return The token of a previous upload of this very file, if it is still valid
+     */
+    public synchronized String getToken(File file) {
+        Entry entry = entries.get(key(file));
+        if (entry == null || System.currentTimeMillis() - entry.uploadedAt > TOKEN_VALIDITY_MS) {
+            return null;
+        }
+        return entry.token;
+    }
+
+    public synchronized void put(File file, String token) {
+        Entry entry = new Entry();
+        entry.token = token;
+        entry.uploadedAt = System.currentTimeMillis();
+        entries.put(key(file), entry);
+        save();
+    }
+
+    public synchronized void remove(File file) {
+        if (entries.remove(key(file)) != null) {
+            save();
+        }
+    }
+
+    /**
+     * Forget all the tokens, once the job is done: the files are linked, or will be uploaded again by a rerun. The
+     * tokens are credentials for the uploads, they don't stay in the working dir.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        save();
+    }
+
+    private void save() {
+        // Drop the expired entries while we are at it
+        long now = System.currentTimeMillis();
+        entries.values().removeIf(entry -> now - entry.uploadedAt > TOKEN_VALIDITY_MS);
+
+        if (entries.isEmpty()) {
+            if (journalFile.exists() && !journalFile.delete()) {
+                TaskPlugin.LOGGER.warn("Couldn't delete upload journal " + journalFile);
+            }
+            return;
+        }
+        try {
+            if (journalFile.createNewFile()) {
+                // Owner only, before the tokens are written
+                if (!journalFile.setReadable(false, false) || !journalFile.setReadable(true, true)) {
+                    TaskPlugin.LOGGER.warn("Couldn't restrict the permissions of upload journal " + journalFile);
+                }
+            }
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(journalFile), StandardCharsets.UTF_8)) {
+                TaskPlugin.GSON.toJson(entries, writer);
+            }
+        } catch (IOException e) {
+            // The journal is only an optimization
+            TaskPlugin.LOGGER.warn("Couldn't write upload journal " + journalFile, e);
+        }
+    }
+
+    private String key(File file) {
+        return redmineUrl + "|" + file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified();
+    }
+
+    static class Entry {
+        String token;
+        long uploadedAt;
+    }
+}
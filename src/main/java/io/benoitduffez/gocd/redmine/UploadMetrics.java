@@ -0,0 +1,103 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.benoitduffez.gocd.redmine;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timings and transfer figures of the publication of one file, written to {@code redmine_metrics.json}
+ */
+public class UploadMetrics {
+    public static final String TEMPLATE = "template";
+    public static final String ANDROID_VERSION = "android_version";
+    public static final String DIGEST = "digest";
+    public static final String DUPLICATE_CHECK = "duplicate_check";
+    public static final String UPLOAD = "upload";
+    public static final String LINK = "link";
+
+    private final Map<String, Long> phasesMs = new LinkedHashMap<>();
+    private long bytesSent;
+    private long throughputBytesPerSecond;
+
+    /**
+     * Run a phase and add its duration to the metrics, even if it fails
+     */
+    public <T> T time(String phase, Retry.Call<T> call) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return call.call();
+        } finally {
+            add(phase, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @param phase    Phase name
+     * @param nanoTime Duration of the phase, added to the previous ones if it already ran
+     */
+    public synchronized void add(String phase, long nanoTime) {
+        Long previous = phasesMs.get(phase);
+        phasesMs.put(phase, (previous == null ? 0 : previous) + TimeUnit.NANOSECONDS.toMillis(nanoTime));
+    }
+
+    /**
+     * @param bytes    Size of the request body that was accepted by Redmine
+     * @param nanoTime Time it took to send it
+     */
+    public synchronized void uploaded(long bytes, long nanoTime) {
+        bytesSent += bytes;
+        if (nanoTime > 0) {
+            throughputBytesPerSecond = bytes * TimeUnit.SECONDS.toNanos(1) / nanoTime;
+        }
+    }
+
+    public synchronized long getBytesSent() {
+        return bytesSent;
+    }
+
+    public synchronized Long getPhaseMs(String phase) {
+        return phasesMs.get(phase);
+    }
+
+    /**
+     * @return One line summary, e.g. "12.3 MB sent at 2.1 MB/s, digest 40 ms, upload 5873 ms, link 52 ms"
+     */
+    public synchronized String summary() {
+        StringBuilder summary = new StringBuilder(formatBytes(bytesSent)).append(" sent");
+        if (bytesSent > 0) {
+            summary.append(" at ").append(formatBytes(throughputBytesPerSecond)).append("/s");
+        }
+        for (Map.Entry<String, Long> phase : phasesMs.entrySet()) {
+            summary.append(", ").append(phase.getKey()).append(' ').append(phase.getValue()).append(" ms");
+        }
+        return summary.toString();
+    }
+
+    /**
+     * @return Human readable size, e.g. 12.3 MB
+     */
+    public static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        int unit = (63 - Long.numberOfLeadingZeros(bytes)) / 10;
+        return String.format("%.1f %sB", bytes / (double) (1L << (unit * 10)), " KMGTPE".charAt(unit));
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.benoitduffez.gocd.redmine;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits shared by all the tasks running in the plugin JVM: the number of concurrent uploads to each Redmine host, and
+ * the total upload bandwidth. Waiting tasks are served in arrival order.
+ */
+public class UploadThrottle {
+    private static final Map<String, HostSlots> SLOTS = new ConcurrentHashMap<>();
+    private static final TokenBucket BANDWIDTH = new TokenBucket();
+
+    private UploadThrottle() {
+    }
+
+    /**
+     * Apply the limits found in the task environment. A limit that is not set is left as it is, 0 removes it.
+     *
+     * @param redmineUrl        Redmine URL
+     * @param maxUploads        Maximum number of concurrent uploads to the host of that URL, or -1 if not set
+     * @param maxBytesPerSecond Maximum total upload bandwidth, or -1 if not set
+     * @throws MalformedURLException If the Redmine URL is invalid
+     */
+    public static void configure(String redmineUrl, int maxUploads, long maxBytesPerSecond) throws MalformedURLException {
+        if (maxUploads >= 0) {
+            String host = host(redmineUrl);
+            if (maxUploads == 0) {
+                SLOTS.remove(host);
+            } else {
+                // Uploads running with a previous limit release their slot on the previous semaphore
+                SLOTS.compute(host, (key, slots) -> slots != null && slots.limit == maxUploads ? slots : new HostSlots(maxUploads));
+            }
+        }
+        if (maxBytesPerSecond >= 0) {
+            BANDWIDTH.setRate(maxBytesPerSecond);
+        }
+    }
+
+    /**
+     * Wait for an upload slot on the host of that URL
+     *
+     * @param url URL of the upload
+     * @return The slot, to be closed when the upload is over
+     * @throws IOException If the URL is invalid, or if the thread is interrupted while waiting
+     */
+    public static Slot acquire(String url) throws IOException {
+        HostSlots slots = SLOTS.get(host(url));
+        long start = System.nanoTime();
+        if (slots != null) {
+            try {
+                slots.semaphore.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for an upload slot");
+            }
+        }
+        return new Slot(slots == null ? null : slots.semaphore, System.nanoTime() - start);
+    }
+
+    /**
+     * @param output Request body
+     * @return The request body, written no faster than the bandwidth limit
+     */
+    public static ThrottledOutputStream throttle(OutputStream output) {
+        return new ThrottledOutputStream(output);
+    }
+
+    private static String host(String url) throws MalformedURLException {
+        return new URL(url).getAuthority();
+    }
+
+    /**
+     * A slot for one upload
+     */
+    public static class Slot implements AutoCloseable {
+        private final Semaphore semaphore;
+        private final long waitedNanos;
+
+        Slot(Semaphore semaphore, long waitedNanos) {
+            this.semaphore = semaphore;
+            this.waitedNanos = waitedNanos;
+        }
+
+        /**
+         * @return Time spent waiting for the slot
+         */
+        public long getWaitedMs() {
+            return TimeUnit.NANOSECONDS.toMillis(waitedNanos);
+        }
+
+        @Override
+        public void close() {
+            if (semaphore != null) {
+                semaphore.release();
+            }
+        }
+    }
+
+    /**
+     * Waits for the bandwidth limit before each write
+     */
+    public static class ThrottledOutputStream extends FilterOutputStream {
+        private long waitedNanos;
+
+        ThrottledOutputStream(OutputStream output) {
+            super(output);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            waitedNanos += BANDWIDTH.take(1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            waitedNanos += BANDWIDTH.take(len);
+            out.write(b, off, len);
+        }
+
+        /**
+         * @return Time spent waiting for the bandwidth limit
+         */
+        public long getWaitedMs() {
+            return TimeUnit.NANOSECONDS.toMillis(waitedNanos);
+        }
+    }
+
+    private static class HostSlots {
+        final int limit;
+        final Semaphore semaphore;
+
+        HostSlots(int limit) {
+            this.limit = limit;
+            this.semaphore = new Semaphore(limit, true);
+        }
+    }
+
+    /**
+     * Token bucket holding up to one second of bandwidth. Callers reserve their bytes in turn and may take the bucket
+     * into debt, so that each one waits for the bytes reserved before it: this keeps the waiting callers in order.
+     */
+    private static class TokenBucket {
+        private long rate;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        synchronized void setRate(long bytesPerSecond) {
+            rate = bytesPerSecond;
+            tokens = Math.min(tokens, bytesPerSecond);
+        }
+
+        /**
+         * @param bytes Number of bytes about to be written
+         * @return Time spent waiting for them, in nanoseconds
+         * @throws InterruptedIOException If the thread is interrupted while waiting
+         */
+        long take(int bytes) throws InterruptedIOException {
+            long waitNanos;
+            synchronized (this) {
+                if (rate <= 0) {
+                    return 0;
+                }
+                long now = System.nanoTime();
+                tokens = Math.min(rate, tokens + (now - lastRefill) * rate / 1e9);
+                lastRefill = now;
+                tokens -= bytes;
+                waitNanos = tokens >= 0 ? 0 : (long) (-tokens * 1e9 / rate);
+            }
+            if (waitNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the bandwidth limit");
+                }
+            }
+            return waitNanos;
+        }
+    }
+}
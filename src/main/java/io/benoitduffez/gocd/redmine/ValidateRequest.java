@@ -16,39 +16,130 @@
 
 package io.benoitduffez.gocd.redmine;
 
-import com.google.gson.GsonBuilder;
 import com.thoughtworks.go.plugin.api.request.GoPluginApiRequest;
 import com.thoughtworks.go.plugin.api.response.DefaultGoPluginApiResponse;
 import com.thoughtworks.go.plugin.api.response.GoPluginApiResponse;
 
 import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 
 public class ValidateRequest {
     public GoPluginApiResponse execute(GoPluginApiRequest request) {
         HashMap<String, Object> validationResult = new HashMap<>();
         int responseCode = DefaultGoPluginApiResponse.SUCCESS_RESPONSE_CODE;
-        Map configMap = (Map) new GsonBuilder().create().fromJson(request.requestBody(), Object.class);
+        TaskConfig config = TaskPlugin.GSON.fromJson(request.requestBody(), TaskConfig.class);
+        if (config == null) {
+            config = new TaskConfig(new HashMap<String, String>());
+        }
         HashMap<String, String> errorMap = new HashMap<>();
-        if (!hasValidEntry(configMap, TaskPlugin.PROJECT_ID_PROPERTY)) {
-            errorMap.put(TaskPlugin.PROJECT_ID_PROPERTY, "Project ID cannot be empty");
+        // Versions are optional when the files are attached to an issue, but a project goes with a version
+        boolean versions = hasValidEntry(config, TaskPlugin.PROJECT_ID_PROPERTY) || hasValidEntry(config, TaskPlugin.VERSION_ID_PROPERTY);
+        if (config.getIssueId() == null || versions) {
+            if (!hasValidEntry(config, TaskPlugin.PROJECT_ID_PROPERTY)) {
+                errorMap.put(TaskPlugin.PROJECT_ID_PROPERTY, "Project ID cannot be empty");
+            }
+            if (!hasValidEntry(config, TaskPlugin.VERSION_ID_PROPERTY)) {
+                errorMap.put(TaskPlugin.VERSION_ID_PROPERTY, "Version ID cannot be empty");
+            }
         }
-        if (!hasValidEntry(configMap, TaskPlugin.VERSION_ID_PROPERTY)) {
-            errorMap.put(TaskPlugin.VERSION_ID_PROPERTY, "Version ID cannot be empty");
+        if (hasValidEntry(config, TaskPlugin.ISSUE_ID_PROPERTY) && TaskConfig.parseInt(config.getIssueId(), 1, 0) < 1) {
+            errorMap.put(TaskPlugin.ISSUE_ID_PROPERTY, "Issue must be a positive number, e.g. 1234 or #1234");
         }
-        if (!hasValidEntry(configMap, TaskPlugin.FILE_PATH_PROPERTY)) {
+        if (!hasValidEntry(config, TaskPlugin.FILE_PATH_PROPERTY)) {
             errorMap.put(TaskPlugin.FILE_PATH_PROPERTY, "File Path cannot be empty");
         }
-        if (!hasValidEntry(configMap, TaskPlugin.FILE_NAME_PROPERTY)) {
+        if (!hasValidEntry(config, TaskPlugin.FILE_NAME_PROPERTY)) {
             errorMap.put(TaskPlugin.FILE_NAME_PROPERTY, "File Name cannot be empty");
+        } else {
+            try {
+                FileNameTemplate template = FileNameTemplate.compile(config.getValue(TaskPlugin.FILE_NAME_PROPERTY));
+                if (matchesSeveralFiles(config) && !usesAny(template, RedmineUploadFileTaskExecutor.DISTINCT_PLACEHOLDERS)) {
+                    errorMap.put(TaskPlugin.FILE_NAME_PROPERTY, "File Name must contain %F, %H or %S when File Path is a pattern or a list, otherwise all the files get the same name");
+                }
+            } catch (IllegalArgumentException e) {
+                errorMap.put(TaskPlugin.FILE_NAME_PROPERTY, "Invalid File Name: " + e.getMessage());
+            }
+        }
+        if (hasValidEntry(config, TaskPlugin.PARALLELISM_PROPERTY) && !isInt(config, TaskPlugin.PARALLELISM_PROPERTY, 1)) {
+            errorMap.put(TaskPlugin.PARALLELISM_PROPERTY, "Parallel uploads must be a positive number");
+        }
+        if (hasValidEntry(config, TaskPlugin.RETRIES_PROPERTY) && !isInt(config, TaskPlugin.RETRIES_PROPERTY, 0)) {
+            errorMap.put(TaskPlugin.RETRIES_PROPERTY, "Retries must be a positive number or 0");
+        }
+        if (hasValidEntry(config, TaskPlugin.ARCHIVE_FORMAT_PROPERTY)) {
+            String format = config.getValue(TaskPlugin.ARCHIVE_FORMAT_PROPERTY).trim().toLowerCase();
+            if (!ArchiveWriter.ZIP.equals(format) && !ArchiveWriter.TAR_GZ.equals(format)) {
+                errorMap.put(TaskPlugin.ARCHIVE_FORMAT_PROPERTY, "Archive format must be zip or tar.gz");
+            }
+        }
+        if (hasValidEntry(config, TaskPlugin.COMPRESSION_LEVEL_PROPERTY)
+                && (!isInt(config, TaskPlugin.COMPRESSION_LEVEL_PROPERTY, 0) || TaskConfig.parseInt(config.getValue(TaskPlugin.COMPRESSION_LEVEL_PROPERTY), 0, 0) > 9)) {
+            errorMap.put(TaskPlugin.COMPRESSION_LEVEL_PROPERTY, "Compression level must be between 0 and 9");
+        }
+        if (config.isFollow()) {
+            for (String path : config.getFilePaths()) {
+                if (FileMatcher.isGlob(path)) {
+                    errorMap.put(TaskPlugin.FILE_PATH_PROPERTY, "Files can only be followed by their path, not with a pattern: " + path);
+                }
+            }
+        }
+        if (hasValidEntry(config, TaskPlugin.FOLLOW_QUIET_PERIOD_PROPERTY) && !isInt(config, TaskPlugin.FOLLOW_QUIET_PERIOD_PROPERTY, 1)) {
+            errorMap.put(TaskPlugin.FOLLOW_QUIET_PERIOD_PROPERTY, "Quiet period must be a positive number of seconds");
+        }
+        if (hasValidEntry(config, TaskPlugin.MAX_FILE_SIZE_PROPERTY) && !isInt(config, TaskPlugin.MAX_FILE_SIZE_PROPERTY, 1)) {
+            errorMap.put(TaskPlugin.MAX_FILE_SIZE_PROPERTY, "Max file size must be a positive number of KB");
+        }
+        if (hasValidEntry(config, TaskPlugin.RETENTION_KEEP_PROPERTY) && !isInt(config, TaskPlugin.RETENTION_KEEP_PROPERTY, 1)) {
+            errorMap.put(TaskPlugin.RETENTION_KEEP_PROPERTY, "Number of files to keep must be a positive number");
+        }
+        if (hasValidEntry(config, TaskPlugin.RETENTION_DAYS_PROPERTY) && !isInt(config, TaskPlugin.RETENTION_DAYS_PROPERTY, 1)) {
+            errorMap.put(TaskPlugin.RETENTION_DAYS_PROPERTY, "Retention must be a positive number of days");
+        }
+        String scope = config.getRetentionScope();
+        if (!Retention.SCOPE_VERSION.equals(scope) && !Retention.SCOPE_TEMPLATE.equals(scope)) {
+            errorMap.put(TaskPlugin.RETENTION_SCOPE_PROPERTY, "Retention scope must be version or template");
+        }
+        if ((config.getRetentionKeep() > 0 || config.getRetentionDays() > 0) && !errorMap.containsKey(TaskPlugin.FILE_NAME_PROPERTY)
+                && !FileNameTemplate.compile(config.getFileName()).hasFixedText(RedmineUploadFileTaskExecutor.RETENTION_FIXED_PLACEHOLDERS)) {
+            errorMap.put(TaskPlugin.FILE_NAME_PROPERTY, "File Name must contain %P, %F or a name besides the extension, for the retention to know which files it produced");
+        }
+        if (config.getLogLevel() != null && !config.getLogLevel().equalsIgnoreCase(ConsoleLog.parseLevel(config.getLogLevel()).name())) {
+            errorMap.put(TaskPlugin.LOG_LEVEL_PROPERTY, "Log level must be debug, info, warn or error");
         }
         validationResult.put("errors", errorMap);
         return new DefaultGoPluginApiResponse(responseCode, TaskPlugin.GSON.toJson(validationResult));
     }
 
-    private boolean hasValidEntry(Map map, String key) {
-        return map.containsKey(key)
-                && ((Map) map.get(key)).get("value") != null
-                && !((String) ((Map) map.get(key)).get("value")).trim().isEmpty();
+    /**
+     * @return Whether File Path can match more than one file: a list of paths, or a pattern
+     */
+    private boolean matchesSeveralFiles(TaskConfig config) {
+        List<String> paths = config.getFilePaths();
+        if (paths.size() > 1) {
+            return true;
+        }
+        for (String path : paths) {
+            if (FileMatcher.isGlob(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean usesAny(FileNameTemplate template, String placeholders) {
+        for (int i = 0; i < placeholders.length(); i++) {
+            if (template.uses(placeholders.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isInt(TaskConfig config, String key, int min) {
+        return TaskConfig.parseInt(config.getValue(key), min, min - 1) >= min;
+    }
+
+    private boolean hasValidEntry(TaskConfig config, String key) {
+        return config.getValue(key) != null && !config.getValue(key).trim().isEmpty();
     }
 }
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.benoitduffez.gocd.redmine;
+
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CircuitBreakerTest {
+    private static final long OPEN_MS = 200;
+
+    private final CircuitBreaker breaker = new CircuitBreaker("http://redmine", 3, OPEN_MS);
+
+    private void fails(int times, Throwable error) throws IOException {
+        for (int i = 0; i < times; i++) {
+            breaker.acquire();
+            breaker.record(error);
+        }
+    }
+
+    private void assertOpen() {
+        try {
+            breaker.acquire();
+            fail("The circuit must be open");
+        } catch (CircuitBreaker.OpenException expected) {
+            // Open
+        }
+    }
+
+    private void open() throws Exception {
+        fails(3, new ConnectException("Connection refused"));
+        assertOpen();
+    }
+
+    @Test
+    public void opensAfterConsecutiveServerFailures() throws Exception {
+        fails(2, new RedmineException(503, "Service Unavailable"));
+        breaker.acquire();
+        breaker.record(new SocketTimeoutException("Read timed out"));
+
+        assertOpen();
+    }
+
+    @Test
+    public void clientErrorResetsTheFailures() throws Exception {
+        fails(2, new ConnectException("Connection refused"));
+        fails(1, new RedmineException(422, "Unprocessable Entity"));
+        fails(2, new ConnectException("Connection refused"));
+
+        breaker.acquire();
+    }
+
+    @Test
+    public void localErrorsTellNothingAboutTheServer() throws Exception {
+        fails(5, new FileNotFoundException("artifact.apk"));
+
+        breaker.acquire();
+    }
+
+    @Test
+    public void neverOpensWithoutMaxFailures() throws Exception {
+        CircuitBreaker disabled = new CircuitBreaker("http://redmine", 0, OPEN_MS);
+        for (int i = 0; i < 10; i++) {
+            disabled.acquire();
+            disabled.record(new ConnectException("Connection refused"));
+        }
+
+        disabled.acquire();
+    }
+
+    @Test
+    public void halfOpenCircuitLetsOneProbeThrough() throws Exception {
+        open();
+        Thread.sleep(OPEN_MS + 100);
+
+        breaker.acquire();
+        // The probe is in flight: the other requests still fail fast
+        assertOpen();
+        try {
+            breaker.check();
+            fail("The circuit must be open while probing");
+        } catch (CircuitBreaker.OpenException expected) {
+            // Open
+        }
+    }
+
+    @Test
+    public void successfulProbeClosesTheCircuit() throws Exception {
+        open();
+        Thread.sleep(OPEN_MS + 100);
+
+        breaker.acquire();
+        breaker.record(null);
+
+        breaker.acquire();
+        breaker.record(null);
+        breaker.acquire();
+    }
+
+    @Test
+    public void clientErrorOfTheProbeClosesTheCircuit() throws Exception {
+        open();
+        Thread.sleep(OPEN_MS + 100);
+
+        breaker.acquire();
+        breaker.record(new RedmineException(404, "Not Found"));
+
+        breaker.acquire();
+    }
+
+    @Test
+    public void failedProbeOpensTheCircuitAgain() throws Exception {
+        open();
+        Thread.sleep(OPEN_MS + 100);
+
+        breaker.acquire();
+        breaker.record(new RedmineException(502, "Bad Gateway"));
+
+        assertOpen();
+        Thread.sleep(OPEN_MS + 100);
+        breaker.acquire();
+    }
+
+    @Test
+    public void serverFailures() {
+        assertTrue(CircuitBreaker.isServerFailure(new ConnectException("Connection refused")));
+        assertTrue(CircuitBreaker.isServerFailure(new SocketTimeoutException("Read timed out")));
+        assertTrue(CircuitBreaker.isServerFailure(new RedmineException(500, "Internal Server Error")));
+        assertFalse(CircuitBreaker.isServerFailure(new RedmineException(403, "Forbidden")));
+        assertFalse(CircuitBreaker.isServerFailure(new FileNotFoundException("artifact.apk")));
+        assertFalse(CircuitBreaker.isServerFailure(new InterruptedIOException("Interrupted")));
+    }
+
+    @Test
+    public void bodySourceErrorsTellNothingAboutTheServer() throws Exception {
+        assertFalse(CircuitBreaker.isServerFailure(new EOFException("File ended at 1024, expected 2048 bytes")));
+        assertFalse(CircuitBreaker.isServerFailure(new IOException("Input/output error")));
+
+        fails(5, new EOFException("File ended at 1024, expected 2048 bytes"));
+        breaker.acquire();
+    }
+
+    @Test
+    public void findsTheBreakerOfARequest() {
+        CircuitBreaker redmine = CircuitBreaker.forUrl("http://find.test/redmine/");
+
+        assertThat(CircuitBreaker.find("http://find.test/redmine/uploads.json"), sameInstance(redmine));
+        assertThat(CircuitBreaker.find("http://find.test/redmine"), sameInstance(redmine));
+        assertThat(CircuitBreaker.find("http://find.test/redmine2/uploads.json"), nullValue());
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.benoitduffez.gocd.redmine;
+
+import org.junit.Test;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.temporal.TemporalAccessor;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class FileNameTemplateTest {
+    private static final ZonedDateTime NOW = ZonedDateTime.of(2017, 3, 9, 14, 5, 7, 0, ZoneOffset.UTC);
+
+    private final Map<Character, String> placeholders = new HashMap<>();
+    private final Map<String, String> environment = new HashMap<>();
+
+    private final FileNameTemplate.Values values = new FileNameTemplate.Values() {
+        @Override
+        public String get(char placeholder) {
+            return placeholders.get(placeholder);
+        }
+
+        @Override
+        public String env(String name) {
+            return environment.get(name);
+        }
+
+        @Override
+        public TemporalAccessor now() {
+            return NOW;
+        }
+    };
+
+    private String expand(String template) {
+        return FileNameTemplate.compile(template).expand(values);
+    }
+
+    @Test
+    public void keepsLiteralText() {
+        assertThat(expand("app-release.apk"), is("app-release.apk"));
+    }
+
+    @Test
+    public void expandsPipelinePlaceholders() {
+        placeholders.put('P', "pipe");
+        placeholders.put('C', "12");
+        placeholders.put('L', "12-label");
+        placeholders.put('R', "0123456789abcdef");
+        placeholders.put('r', "0123456");
+        assertThat(expand("%P-%C-%L-%R-%r"), is("pipe-12-12-label-0123456789abcdef-0123456"));
+    }
+
+    @Test
+    public void expandsFilePlaceholders() {
+        placeholders.put('F', "app.apk");
+        placeholders.put('S', "5000");
+        placeholders.put('H', "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855");
+        placeholders.put('h', "e3b0c44");
+        assertThat(expand("%S-%h-%F"), is("5000-e3b0c44-app.apk"));
+        assertThat(expand("%H"), is("e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855"));
+    }
+
+    @Test
+    public void escapesPercentSign() {
+        placeholders.put('P', "pipe");
+        assertThat(expand("100%%-%%P-%P"), is("100%-%P-pipe"));
+    }
+
+    @Test
+    public void keepsUnknownPlaceholders() {
+        assertThat(expand("%X-%{-50%"), is("%X-%{-50%"));
+    }
+
+    @Test
+    public void expandsMissingValuesToNothing() {
+        assertThat(expand("a%Ab%{UNDEFINED}c"), is("abc"));
+    }
+
+    @Test
+    public void expandsEnvironmentVariables() {
+        environment.put("FLAVOR", "free");
+        assertThat(expand("app-%{FLAVOR}.apk"), is("app-free.apk"));
+    }
+
+    @Test
+    public void expandsDates() {
+        assertThat(expand("%{date:yyyyMMdd}-%{date:HHmmss}"), is("20170309-140507"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidDatePatterns() {
+        FileNameTemplate.compile("%{date:yyyy-bbb}");
+    }
+
+    @Test
+    public void tellsWhichPlaceholdersAreUsed() {
+        FileNameTemplate template = FileNameTemplate.compile("%P-%%A-%{date:yyyy}");
+        assertTrue(template.uses('P'));
+        assertFalse(template.uses('A'));
+        assertFalse(template.uses('d'));
+    }
+
+    @Test
+    public void cachesCompiledTemplates() {
+        assertSame(FileNameTemplate.compile("%P-%C"), FileNameTemplate.compile("%P-%C"));
+    }
+}
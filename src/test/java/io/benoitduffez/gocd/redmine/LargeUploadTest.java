@@ -0,0 +1,152 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.benoitduffez.gocd.redmine;
+
+import com.sun.net.httpserver.HttpServer;
+import com.thoughtworks.go.plugin.api.task.JobConsoleLogger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Uploads of files larger than the heap to a stub Redmine: the request body must be streamed, with a fixed length for
+ * files and chunked for directories. Run with a small heap (see the test task of build.gradle).
+ */
+public class LargeUploadTest {
+    private static final long MARGIN = 16 * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private final AtomicLong uploaded = new AtomicLong();
+    private final AtomicReference<String> contentLength = new AtomicReference<>();
+    private final AtomicReference<String> transferEncoding = new AtomicReference<>();
+
+    @Before
+    public void startStub() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            long read = drain(exchange.getRequestBody());
+            int status = 200;
+            String response = "{}";
+            if (path.equals("/uploads.json")) {
+                uploaded.set(read);
+                contentLength.set(exchange.getRequestHeaders().getFirst("Content-Length"));
+                transferEncoding.set(exchange.getRequestHeaders().getFirst("Transfer-Encoding"));
+                status = 201;
+                response = "{\"upload\":{\"token\":\"1.token\"}}";
+            } else if (path.equals("/versions/1.json")) {
+                response = "{\"version\":{\"id\":1,\"name\":\"1.0\",\"status\":\"open\",\"project\":{\"id\":1}}}";
+            } else if (path.equals("/projects/1/files.json")) {
+                status = "POST".equals(exchange.getRequestMethod()) ? 201 : 200;
+                response = status == 201 ? "" : "{\"files\":[]}";
+            }
+            byte[] body = response.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(body);
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void stopStub() {
+        server.stop(0);
+    }
+
+    @Test
+    public void uploadsFileLargerThanHeapWithFixedLength() throws IOException {
+        long size = Runtime.getRuntime().maxMemory() + MARGIN;
+        sparseFile(new File(folder.getRoot(), "large.bin"), size);
+
+        Result result = execute("large.bin", new HashMap<>());
+
+        assertTrue(result.getMessage(), result.isSuccess());
+        assertThat(uploaded.get(), is(size));
+        assertThat(contentLength.get(), is(String.valueOf(size)));
+    }
+
+    @Test
+    public void uploadsDirectoryLargerThanHeapChunked() throws IOException {
+        long size = Runtime.getRuntime().maxMemory() + MARGIN;
+        File directory = folder.newFolder("large");
+        sparseFile(new File(directory, "large.bin"), size);
+        Map<String, String> config = new HashMap<>();
+        config.put(TaskPlugin.ARCHIVE_FORMAT_PROPERTY, "zip");
+        config.put(TaskPlugin.COMPRESSION_LEVEL_PROPERTY, "0");
+
+        Result result = execute("large", config);
+
+        assertTrue(result.getMessage(), result.isSuccess());
+        assertThat(uploaded.get(), greaterThan(size));
+        assertThat(transferEncoding.get(), is("chunked"));
+    }
+
+    private Result execute(String filePath, Map<String, String> config) {
+        config.put(TaskPlugin.PROJECT_ID_PROPERTY, "1");
+        config.put(TaskPlugin.VERSION_ID_PROPERTY, "1");
+        config.put(TaskPlugin.FILE_PATH_PROPERTY, filePath);
+        config.put(TaskPlugin.FILE_NAME_PROPERTY, "%F");
+        Map<String, String> environment = new HashMap<>();
+        environment.put("REDMINE_URL", "http://127.0.0.1:" + server.getAddress().getPort());
+        environment.put("REDMINE_API_KEY", "key");
+        environment.put("GO_PIPELINE_COUNTER", "1");
+        return new RedmineUploadFileTaskExecutor().execute(new TaskConfig(config), new Context(environment, folder.getRoot().getPath()), new JobConsoleLogger() {
+            @Override
+            public void printLine(String line) {
+            }
+        });
+    }
+
+    private static void sparseFile(File file, long size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(size);
+        }
+    }
+
+    private static long drain(InputStream input) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            total += read;
+        }
+        return total;
+    }
+}
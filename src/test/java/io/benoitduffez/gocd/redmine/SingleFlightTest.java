@@ -0,0 +1,124 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.benoitduffez.gocd.redmine;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SingleFlightTest {
+    private final SingleFlight<String, String> flights = new SingleFlight<>();
+    private final ExecutorService pool = Executors.newCachedThreadPool();
+    private final CountDownLatch entered = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @After
+    public void stopPool() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * Start a leader that runs the call once {@link #release} is counted down, and wait for it to be in flight
+     */
+    private Future<String> lead(Retry.Call<String> call) throws InterruptedException {
+        Future<String> leader = pool.submit(() -> flights.run("key", () -> {
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted");
+            }
+            return call.call();
+        }));
+        entered.await();
+        return leader;
+    }
+
+    @Test(timeout = 5000)
+    public void followerReusesResultOfLeader() throws Exception {
+        Future<String> leader = lead(() -> "token");
+        SingleFlight<String, String>.Flight follower = flights.join("key");
+        assertFalse(follower.isLeader());
+
+        release.countDown();
+
+        assertThat(follower.await(), is("token"));
+        assertThat(leader.get(), is("token"));
+    }
+
+    @Test(timeout = 5000)
+    public void leaderFailureIsPassedToFollowersAndNextCallerLeads() throws Exception {
+        lead(() -> {
+            throw new IOException("upload failed");
+        });
+        SingleFlight<String, String>.Flight follower = flights.join("key");
+
+        release.countDown();
+
+        try {
+            follower.await();
+            fail("The follower must get the error of the leader");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), is("upload failed"));
+        }
+        assertTrue(flights.join("key").isLeader());
+    }
+
+    @Test(timeout = 5000)
+    public void leaderErrorReleasesFollowers() throws Exception {
+        lead(() -> {
+            throw new StackOverflowError();
+        });
+        SingleFlight<String, String>.Flight follower = flights.join("key");
+
+        release.countDown();
+
+        try {
+            follower.await();
+            fail("The follower must get the error of the leader");
+        } catch (IOException e) {
+            assertThat(e.getCause(), instanceOf(StackOverflowError.class));
+        }
+        assertTrue(flights.join("key").isLeader());
+    }
+
+    @Test
+    public void completedCallIsNotShared() throws IOException {
+        assertThat(flights.run("key", () -> "first"), is("first"));
+        assertThat(flights.run("key", () -> "second"), is("second"));
+    }
+
+    @Test
+    public void callsWithDifferentKeysDoNotWaitForEachOther() {
+        assertTrue(flights.join("a").isLeader());
+        assertTrue(flights.join("b").isLeader());
+        assertFalse(flights.join("a").isLeader());
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.benoitduffez.gocd.redmine;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.endsWith;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class SpoolTest {
+    private static final String API_KEY = "0123456789abcdef0123456789abcdef01234567";
+    // Nothing listens on port 1: every publication of the spool fails
+    private static final String UNREACHABLE_URL = "http://127.0.0.1:1/spool-test";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final ExecutorService pool = Executors.newCachedThreadPool();
+
+    @After
+    public void stopPool() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void stagedEntryIsOnlyVisibleOnceCommitted() throws IOException {
+        File directory = folder.getRoot();
+        Spool.Staged staged = Spool.stage(directory, "app.apk", output -> output.write("apk".getBytes(StandardCharsets.UTF_8)));
+
+        assertThat(FileUtils.readFileToString(staged.getFile(), StandardCharsets.UTF_8), is("apk"));
+        assertThat(committedEntries(directory).size(), is(0));
+
+        staged.commit(UNREACHABLE_URL, API_KEY, config("app.apk"), new HashMap<>());
+
+        List<File> entries = committedEntries(directory);
+        assertThat(entries.size(), is(1));
+        assertThat(FileUtils.readFileToString(new File(entries.get(0), "app.apk"), StandardCharsets.UTF_8), is("apk"));
+        assertThat(new File(entries.get(0), Spool.ENTRY_FILE).isFile(), is(true));
+    }
+
+    @Test
+    public void apiKeyIsNotWrittenToTheSpool() throws IOException {
+        File directory = folder.getRoot();
+        Spool.stage(directory, "app.apk", output -> output.write(1)).commit(UNREACHABLE_URL, API_KEY, config("app.apk"), new HashMap<>());
+
+        String entry = FileUtils.readFileToString(new File(committedEntries(directory).get(0), Spool.ENTRY_FILE), StandardCharsets.UTF_8);
+        assertThat(entry, not(containsString(API_KEY)));
+        assertThat(entry, containsString(UNREACHABLE_URL));
+    }
+
+    @Test
+    public void failedCopyLeavesNothingBehind() {
+        File directory = folder.getRoot();
+        try {
+            Spool.stage(directory, "app.apk", output -> {
+                output.write(new byte[1024]);
+                throw new IOException("disk full");
+            });
+            fail("The copy must fail");
+        } catch (IOException expected) {
+            assertThat(expected.getMessage(), is("disk full"));
+        }
+        assertThat(directory.list().length, is(0));
+    }
+
+    @Test
+    public void discardRemovesTheEntry() throws IOException {
+        File directory = folder.getRoot();
+        Spool.stage(directory, "app.apk", output -> output.write(1)).discard();
+
+        assertThat(directory.list().length, is(0));
+    }
+
+    @Test(timeout = 10000)
+    public void concurrentJobsGetTheirOwnEntries() throws Exception {
+        File directory = folder.getRoot();
+        int jobs = 16;
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < jobs; i++) {
+            byte[] content = String.valueOf(i).getBytes(StandardCharsets.UTF_8);
+            tasks.add(() -> {
+                Spool.stage(directory, "app.apk", output -> output.write(content)).commit(UNREACHABLE_URL, API_KEY, config("app.apk"), new HashMap<>());
+                return null;
+            });
+        }
+        for (Future<Void> future : pool.invokeAll(tasks)) {
+            future.get();
+        }
+
+        Set<String> contents = new HashSet<>();
+        for (File entry : committedEntries(directory)) {
+            contents.add(FileUtils.readFileToString(new File(entry, "app.apk"), StandardCharsets.UTF_8));
+        }
+        assertThat(contents.size(), is(jobs));
+    }
+
+    @Test(timeout = 60000)
+    public void failedPublicationIsTriedAgainLater() throws IOException {
+        File directory = folder.getRoot();
+        Spool.stage(directory, "app.apk", output -> output.write(1)).commit(UNREACHABLE_URL, API_KEY, config("app.apk"), new HashMap<>());
+        File entryFile = new File(committedEntries(directory).get(0), Spool.ENTRY_FILE);
+
+        long before = System.currentTimeMillis();
+        Spool.drain();
+
+        Spool.Entry entry = TaskPlugin.GSON.fromJson(FileUtils.readFileToString(entryFile, StandardCharsets.UTF_8), Spool.Entry.class);
+        assertThat(entry.attempts, is(1));
+        assertThat(entry.lastError, notNullValue());
+        assertThat(entry.nextAttemptAt, greaterThan(before));
+
+        // Not due yet: the next drain leaves the entry alone
+        Spool.drain();
+        entry = TaskPlugin.GSON.fromJson(FileUtils.readFileToString(entryFile, StandardCharsets.UTF_8), Spool.Entry.class);
+        assertThat(entry.attempts, is(1));
+    }
+
+    private static List<File> committedEntries(File directory) {
+        List<File> entries = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                assertThat(file.isDirectory(), is(true));
+                if (!file.getName().endsWith(".tmp")) {
+                    entries.add(file);
+                }
+            }
+        }
+        Collections.sort(entries);
+        return entries;
+    }
+
+    private static Map<String, String> config(String filePath) {
+        Map<String, String> config = new HashMap<>();
+        config.put(TaskPlugin.FILE_PATH_PROPERTY, filePath);
+        config.put(TaskPlugin.FILE_NAME_PROPERTY, filePath);
+        config.put(TaskPlugin.PROJECT_ID_PROPERTY, "1");
+        config.put(TaskPlugin.VERSION_ID_PROPERTY, "1");
+        config.put(TaskPlugin.RETRIES_PROPERTY, "0");
+        return config;
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2017 ThoughtWorks, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.benoitduffez.gocd.redmine;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class UploadThrottleTest {
+    private static final String URL = "http://throttle.test/redmine/uploads.json";
+    private static final String OTHER_URL = "http://other.throttle.test/redmine/uploads.json";
+
+    private final ExecutorService pool = Executors.newCachedThreadPool();
+
+    @After
+    public void removeLimits() throws IOException {
+        pool.shutdownNow();
+        UploadThrottle.configure(URL, 0, 0);
+    }
+
+    @Test(timeout = 5000)
+    public void limitsConcurrentUploadsToHost() throws Exception {
+        UploadThrottle.configure(URL, 2, -1);
+        UploadThrottle.Slot first = UploadThrottle.acquire(URL);
+        UploadThrottle.acquire(URL);
+
+        Future<UploadThrottle.Slot> third = pool.submit(() -> UploadThrottle.acquire(URL));
+        try {
+            third.get(200, TimeUnit.MILLISECONDS);
+            fail("The third upload must wait for a slot");
+        } catch (TimeoutException expected) {
+            // Waiting
+        }
+
+        first.close();
+        assertThat(third.get().getWaitedMs(), greaterThanOrEqualTo(100L));
+    }
+
+    @Test(timeout = 5000)
+    public void otherHostsAreNotLimited() throws Exception {
+        UploadThrottle.configure(URL, 1, -1);
+        UploadThrottle.acquire(URL);
+
+        UploadThrottle.acquire(OTHER_URL).close();
+    }
+
+    @Test(timeout = 5000)
+    public void zeroRemovesTheLimit() throws Exception {
+        UploadThrottle.configure(URL, 1, -1);
+        UploadThrottle.acquire(URL);
+
+        UploadThrottle.configure(URL, 0, -1);
+        UploadThrottle.acquire(URL).close();
+    }
+
+    @Test(timeout = 5000)
+    public void unsetLimitIsKept() throws Exception {
+        UploadThrottle.configure(URL, 1, -1);
+        UploadThrottle.acquire(URL);
+
+        UploadThrottle.configure(URL, -1, -1);
+        Future<UploadThrottle.Slot> second = pool.submit(() -> UploadThrottle.acquire(URL));
+        try {
+            second.get(200, TimeUnit.MILLISECONDS);
+            fail("The limit must still apply");
+        } catch (TimeoutException expected) {
+            // Waiting
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void interruptedWhileWaitingForASlot() throws Exception {
+        UploadThrottle.configure(URL, 1, -1);
+        UploadThrottle.acquire(URL);
+
+        Future<UploadThrottle.Slot> waiting = pool.submit(() -> UploadThrottle.acquire(URL));
+        Thread.sleep(100);
+        pool.shutdownNow();
+
+        try {
+            waiting.get();
+            fail("The wait must be interrupted");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(InterruptedIOException.class));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void limitsBandwidth() throws Exception {
+        int rate = 256 * 1024;
+        UploadThrottle.configure(URL, -1, rate);
+        UploadThrottle.ThrottledOutputStream output = UploadThrottle.throttle(new ByteArrayOutputStream());
+        byte[] chunk = new byte[16 * 1024];
+
+        long start = System.nanoTime();
+        // At most one second of bandwidth is available right away, the rest waits for the bucket
+        for (int i = 0; i < 3 * rate / chunk.length; i++) {
+            output.write(chunk);
+        }
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertThat(elapsedMs, greaterThanOrEqualTo(1500L));
+        assertThat(output.getWaitedMs(), greaterThan(0L));
+    }
+
+    @Test(timeout = 5000)
+    public void interruptedWhileWaitingForBandwidth() throws Exception {
+        UploadThrottle.configure(URL, -1, 1024);
+        Future<Void> writer = pool.submit(() -> {
+            UploadThrottle.throttle(new ByteArrayOutputStream()).write(new byte[64 * 1024]);
+            return null;
+        });
+        Thread.sleep(100);
+        pool.shutdownNow();
+
+        try {
+            writer.get();
+            fail("The write must be interrupted");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(InterruptedIOException.class));
+        }
+    }
+}